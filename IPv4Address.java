@@ -0,0 +1,130 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * IPv4Address holds the int helpers used by the zone lookup index
+ */
+final class IPv4Address {
+
+    /**
+     * returned by parse when the input has three dots but is not a dotted-quad
+     */
+    static final long INVALID = -1L;
+
+    /**
+     * returned by parse when the input does not have exactly three dots (an empty IP)
+     */
+    static final long EMPTY = -2L;
+
+    private IPv4Address() {
+    }
+
+    /**
+     * parse validates a dotted-quad (e.g. 10.1.2.3) and converts it to its unsigned 32 bit value
+     * in a single pass, without building intermediate Strings
+     * @param IP address to parse
+     * @return the address in the low 32 bits, or EMPTY/INVALID (both negative)
+     */
+    static long parse(CharSequence IP) {
+        if (IP == null) return EMPTY;
+        return parse(IP, 0, IP.length());
+    }
+
+    /**
+     * parse validates and converts the dotted-quad between from and to
+     * @param IP text holding the address
+     * @param from index of the first character
+     * @param to index after the last character
+     * @return the address in the low 32 bits, or EMPTY/INVALID (both negative)
+     */
+    static long parse(CharSequence IP, int from, int to) {
+        return parse(IP::charAt, from, to);
+    }
+
+    /**
+     * parse is parse(CharSequence, int, int) over ASCII bytes, so mapped files are scanned without decoding
+     * @param bytes buffer holding the address
+     * @param from index of the first byte
+     * @param to index after the last byte
+     * @return the address in the low 32 bits, or EMPTY/INVALID (both negative)
+     */
+    static long parse(ByteBuffer bytes, int from, int to) {
+        return parse(i -> bytes.get(i) & 0xFF, from, to);
+    }
+
+    /**
+     * parse is the dotted-quad state machine shared by both sources
+     * @param charAt character at an index
+     */
+    private static long parse(IntUnaryOperator charAt, int from, int to) {
+        long address = 0;
+        int dots = 0;
+        int value = 0;
+        int digits = 0;
+        boolean valid = true;
+        for (int i = from; i < to; i++) {
+            int c = charAt.applyAsInt(i);
+            if (c >= '0' && c <= '9') {
+                if (valid) {
+                    value = value * 10 + (c - '0');
+                    if (++digits > 3 || value > 255) valid = false;
+                }
+            } else if (c == '.') {
+                if (digits == 0) valid = false;
+                address = (address << 8) | value;
+                dots++;
+                value = 0;
+                digits = 0;
+            } else {
+                valid = false;
+            }
+        }
+        if (dots != 3) return EMPTY;
+        if (!valid || digits == 0) return INVALID;
+        return (address << 8) | value;
+    }
+
+    /**
+     * format converts an address back to a dotted-quad
+     * @param address IPv4 address as an int
+     * @return dotted-quad String
+     */
+    static String format(int address) {
+        return new StringBuilder(15)
+                .append(address >>> 24).append('.')
+                .append((address >>> 16) & 0xFF).append('.')
+                .append((address >>> 8) & 0xFF).append('.')
+                .append(address & 0xFF)
+                .toString();
+    }
+
+    /**
+     * mask returns the netmask for a prefix length
+     * @param prefix CIDR between 0 and 32
+     * @return netmask as an int (e.g. 24 gives 0xFFFFFF00)
+     */
+    static int mask(int prefix) {
+        return prefix == 0 ? 0 : -1 << (32 - prefix);
+    }
+
+    /**
+     * blocks splits an address range into the fewest CIDR blocks
+     * @param first first address, unsigned
+     * @param last last address, unsigned
+     * @return "network/CIDR" Strings in address order
+     */
+    static List<String> blocks(long first, long last) {
+        List<String> blocks = new ArrayList<>();
+        while (first <= last) {
+            long size = first == 0 ? 1L << 32 : Long.lowestOneBit(first);
+            while (first + size - 1 > last) size >>= 1;
+            blocks.add(format((int) first) + "/" + (32 - Long.numberOfTrailingZeros(size)));
+            first += size;
+        }
+        return blocks;
+    }
+}
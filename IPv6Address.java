@@ -0,0 +1,152 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+/**
+ * IPv6Address holds the helpers used by the zone lookup index for 128 bit addresses,
+ * which are kept as a pair of longs (high and low 64 bits)
+ */
+final class IPv6Address {
+
+    private IPv6Address() {
+    }
+
+    /**
+     * parse validates an IPv6 address (full, :: compressed, or with a trailing dotted-quad) in a single pass
+     * @param IP address to parse
+     * @param out receives the high 64 bits in out[0] and the low 64 bits in out[1]
+     * @return true if IP is a valid address
+     */
+    static boolean parse(CharSequence IP, long[] out) {
+        if (IP == null) return false;
+        int length = IP.length();
+        if (length < 2) return false;
+
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int i = 0;
+        if (IP.charAt(0) == ':') {
+            if (IP.charAt(1) != ':') return false;
+            compressed = true;
+            i = 2;
+        }
+        while (i < length) {
+            int start = i;
+            int value = 0;
+            while (i < length && i - start < 5) {
+                int digit = Character.digit(IP.charAt(i), 16);
+                if (digit < 0) break;
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (i < length && IP.charAt(i) == '.') {
+                //trailing dotted-quad fills the last two groups
+                long v4 = IPv4Address.parse(IP, start, length);
+                if (v4 < 0) return false;
+                if (compressed) {
+                    tailHigh = (tailHigh << 32) | (tailLow >>> 32);
+                    tailLow = (tailLow << 32) | v4;
+                    tailGroups += 2;
+                } else {
+                    headHigh = (headHigh << 32) | (headLow >>> 32);
+                    headLow = (headLow << 32) | v4;
+                    headGroups += 2;
+                }
+                i = length;
+                break;
+            }
+            int digits = i - start;
+            if (digits == 0 || digits > 4) return false;
+            if (compressed) {
+                tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                tailLow = (tailLow << 16) | value;
+                tailGroups++;
+            } else {
+                headHigh = (headHigh << 16) | (headLow >>> 48);
+                headLow = (headLow << 16) | value;
+                headGroups++;
+            }
+            if (i == length) break;
+            if (IP.charAt(i) != ':') return false;
+            i++;
+            if (i < length && IP.charAt(i) == ':') {
+                if (compressed) return false;
+                compressed = true;
+                i++;
+            } else if (i == length) {
+                return false;
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) return false;
+        //move the head groups to the top, the tail groups stay at the bottom
+        int shift = (8 - headGroups) * 16;
+        if (shift == 0) {
+            out[0] = headHigh;
+            out[1] = headLow;
+        } else if (shift < 64) {
+            out[0] = (headHigh << shift) | (headLow >>> (64 - shift)) | tailHigh;
+            out[1] = (headLow << shift) | tailLow;
+        } else if (shift < 128) {
+            out[0] = (headLow << (shift - 64)) | tailHigh;
+            out[1] = tailLow;
+        } else {
+            out[0] = tailHigh;
+            out[1] = tailLow;
+        }
+        return true;
+    }
+
+    /**
+     * format converts an address to its canonical (RFC 5952) text form
+     * @param high high 64 bits
+     * @param low low 64 bits
+     * @return address String, e.g. 2001:db8::1
+     */
+    static String format(long high, long low) {
+        //longest run of two or more zero groups is written as ::
+        int bestStart = -1, bestLength = 1;
+        for (int g = 0, runStart = -1; g <= 8; g++) {
+            if (g < 8 && group(high, low, g) == 0) {
+                if (runStart < 0) runStart = g;
+            } else if (runStart >= 0) {
+                if (g - runStart > bestLength) {
+                    bestStart = runStart;
+                    bestLength = g - runStart;
+                }
+                runStart = -1;
+            }
+        }
+        StringBuilder text = new StringBuilder(39);
+        for (int g = 0; g < 8; g++) {
+            if (g == bestStart) {
+                text.append("::");
+                g += bestLength - 1;
+                continue;
+            }
+            if (text.length() > 0 && text.charAt(text.length() - 1) != ':') text.append(':');
+            text.append(Integer.toHexString(group(high, low, g)));
+        }
+        return text.toString();
+    }
+
+    private static int group(long high, long low, int g) {
+        return (int) ((g < 4 ? high >>> (48 - g * 16) : low >>> (48 - (g - 4) * 16)) & 0xFFFF);
+    }
+
+    /**
+     * @param prefix CIDR between 0 and 128
+     * @return netmask of the high 64 bits
+     */
+    static long maskHigh(int prefix) {
+        return prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+    }
+
+    /**
+     * @param prefix CIDR between 0 and 128
+     * @return netmask of the low 64 bits
+     */
+    static long maskLow(int prefix) {
+        return prefix <= 64 ? 0 : -1L << (128 - prefix);
+    }
+}
@@ -0,0 +1,309 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ZoneAnnotator tags IP-keyed text files (flow exports, access logs) with the oldZone and newZone of the IP on
+ * each line, offline, with the ZoneView engine that ZoneLookupServiceImpl answers from.
+ *
+ *   java -cp zone-lookup.jar com.comcast.snp.netiq.utilities.maintenance.service.ZoneAnnotator [options] input output
+ *     --snapshot FILE     zone snapshot file saved by the service (zone.snapshot.file)
+ *     --mapping FILE      instead of --snapshot, ZoneMapping rows as CSV: subnet,CIDR,service,oldZone,newZone
+ *     --exceptions FILE   ExceptionIPs rows in the same layout, with --mapping
+ *     --column N          field holding the IP, from 0 (default 0)
+ *     --delimiter C       field delimiter: a character, "tab" or "space" (default ,)
+ *     --header            copy the first line, adding oldZone and newZone columns
+ *     --threads N         worker threads (default one per core)
+ *     --engine E          ranges (default) or index, as zoneLookup.engine
+ *
+ * The input is memory-mapped in chunks ending on line boundaries. Workers scan a chunk's bytes for the IP field
+ * and parse IPv4 addresses in place; only IPv6 fields are decoded to Strings. Annotated chunks are written in
+ * input order by the main thread while later chunks are still being annotated. Each line gets the delimiter,
+ * oldZone, the delimiter and newZone appended (UNKNOWN when no subnet matches). Throughput goes to stderr.
+ */
+public final class ZoneAnnotator {
+    private static final int CHUNK = 8 << 20;
+    private static final byte[] UNKNOWN = "UNKNOWN".getBytes(StandardCharsets.US_ASCII);
+
+    private final ZoneView view;
+    private final byte[][] names;   // UTF-8 bytes of each name id of view, empty for null
+    private final int column;
+    private final byte delimiter;
+
+    final LongAdder lines = new LongAdder();
+    final LongAdder matched = new LongAdder();
+
+    /**
+     * @param view zone view to resolve IPs against
+     * @param column field holding the IP, from 0
+     * @param delimiter field delimiter
+     */
+    ZoneAnnotator(ZoneView view, int column, byte delimiter) {
+        this.view = view;
+        this.column = column;
+        this.delimiter = delimiter;
+        names = new byte[view.nameCount()][];
+        //a null name is written as an empty field
+        for (int n = 0; n < names.length; n++) {
+            String name = view.getName(n);
+            names[n] = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        String snapshot = null;
+        String mapping = null;
+        String exceptions = null;
+        int column = 0;
+        byte delimiter = ',';
+        boolean header = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean ranges = true;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i++) {
+                String option = args[i];
+                if (option.equals("--header")) {
+                    header = true;
+                    continue;
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--snapshot": snapshot = value; break;
+                    case "--mapping": mapping = value; break;
+                    case "--exceptions": exceptions = value; break;
+                    case "--column": column = Integer.parseInt(value); break;
+                    case "--delimiter": delimiter = value.equals("tab") ? (byte) '\t' : value.equals("space") ? (byte) ' ' : (byte) value.charAt(0); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--engine": ranges = !value.equals("index"); break;
+                    default: throw new IllegalArgumentException(option);
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+            return;
+        }
+        if (args.length - i != 2 || (snapshot == null) == (mapping == null) || column < 0 || threads < 1) {
+            usage();
+            return;
+        }
+
+        long start = System.nanoTime();
+        ZoneSnapshot zoneMapping;
+        ZoneSnapshot exceptionIPs;
+        if (snapshot != null) {
+            ZoneSnapshotFile file = ZoneSnapshotFile.read(Paths.get(snapshot));
+            zoneMapping = file.getZoneMapping();
+            exceptionIPs = file.getExceptions();
+        } else {
+            zoneMapping = readRows(Paths.get(mapping));
+            exceptionIPs = exceptions == null ? ZoneSnapshot.EMPTY : readRows(Paths.get(exceptions));
+        }
+        ZoneView view = new ZoneView(zoneMapping, exceptionIPs, 0, ranges);
+        System.err.printf("loaded %d subnets in %d ms%n", view.size(), (System.nanoTime() - start) / 1000000);
+
+        ZoneAnnotator annotator = new ZoneAnnotator(view, column, delimiter);
+        Path input = Paths.get(args[i]);
+        start = System.nanoTime();
+        annotator.annotate(input, Paths.get(args[i + 1]), header, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = Files.size(input);
+        long lines = annotator.lines.sum();
+        System.err.printf("annotated %d lines (%d matched), %.1f MB in %.2f s: %.0f lines/s, %.1f MB/s%n",
+                lines, annotator.matched.sum(), bytes / 1e6, seconds, lines / seconds, bytes / 1e6 / seconds);
+    }
+
+    private static void usage() {
+        System.err.println("usage: ZoneAnnotator (--snapshot FILE | --mapping FILE [--exceptions FILE]) [--column N]"
+                + " [--delimiter C|tab|space] [--header] [--threads N] [--engine ranges|index] input output");
+        System.exit(2);
+    }
+
+    /**
+     * readRows builds a snapshot from subnet,CIDR,service,oldZone,newZone lines, standing in for the repositories
+     */
+    private static ZoneSnapshot readRows(Path path) throws IOException {
+        ZoneSnapshot.Builder builder = new ZoneSnapshot.Builder();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] row = line.split(",", -1);
+                if (row.length == 5) builder.add(row[0].trim(), row[1].trim(), row[2].trim(), row[3].trim(), row[4].trim());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * annotate writes input to output with the zones appended to every line
+     * @param input file to annotate
+     * @param output file to write, replaced if it exists
+     * @param header true if the first line is a header
+     * @param threads worker threads
+     */
+    void annotate(Path input, Path output, boolean header, int threads) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "zone-annotator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            if (header && size > 0) {
+                position = lineEnd(in, 1, size);
+                write(out, annotateHeader(in.map(FileChannel.MapMode.READ_ONLY, 0, position)));
+            }
+            //at most two chunks per worker are mapped or held at once
+            ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+            while (position < size) {
+                long end = lineEnd(in, Math.min(size, position + CHUNK), size);
+                MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+                pending.add(workers.submit(() -> annotate(chunk)));
+                position = end;
+                if (pending.size() >= threads * 2) write(out, pending.poll().get());
+            }
+            while (!pending.isEmpty()) write(out, pending.poll().get());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * lineEnd finds the end of the line running through from - 1
+     * @return the position after its line feed, or size
+     */
+    private static long lineEnd(FileChannel in, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (long position = from - 1; position < size; ) {
+            buffer.clear();
+            int read = in.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+
+    private ByteBuffer annotateHeader(ByteBuffer line) {
+        int end = contentEnd(line, 0, line.limit());
+        ByteBuffer out = ByteBuffer.allocate(line.limit() + 18);
+        copy(line, 0, end, out);
+        out.put(delimiter).put("oldZone".getBytes(StandardCharsets.US_ASCII)).put(delimiter).put("newZone".getBytes(StandardCharsets.US_ASCII));
+        copy(line, end, line.limit(), out);
+        return out;
+    }
+
+    /**
+     * annotate appends the zones to every line of a chunk
+     * @param chunk whole lines of the input
+     * @return the annotated lines, ready to be flipped and written
+     */
+    ByteBuffer annotate(ByteBuffer chunk) {
+        int length = chunk.limit();
+        ByteBuffer out = ByteBuffer.allocate(length + (length >>> 2) + 64);
+        long[] address6 = new long[2];
+        long count = 0;
+        long hits = 0;
+        for (int lineStart = 0; lineStart < length; ) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && chunk.get(lineEnd) != '\n') lineEnd++;
+            if (lineEnd < length) lineEnd++;
+            int contentEnd = contentEnd(chunk, lineStart, lineEnd);
+            if (contentEnd == lineStart) {
+                out = ensure(out, lineEnd - lineStart);
+                copy(chunk, lineStart, lineEnd, out);
+                lineStart = lineEnd;
+                continue;
+            }
+
+            //the IP field, without surrounding quotes
+            int from = lineStart;
+            for (int field = 0; field < column && from < contentEnd; from++) {
+                if (chunk.get(from) == delimiter) field++;
+            }
+            int to = from;
+            while (to < contentEnd && chunk.get(to) != delimiter) to++;
+            if (to - from >= 2 && chunk.get(from) == '"' && chunk.get(to - 1) == '"') {
+                from++;
+                to--;
+            }
+            int id = lookup(chunk, from, to, address6);
+
+            byte[] oldZone = id == ZoneView.NOT_FOUND ? UNKNOWN : names[view.getOldZoneId(id)];
+            byte[] newZone = id == ZoneView.NOT_FOUND ? UNKNOWN : names[view.getNewZoneId(id)];
+            out = ensure(out, lineEnd - lineStart + oldZone.length + newZone.length + 2);
+            copy(chunk, lineStart, contentEnd, out);
+            out.put(delimiter).put(oldZone).put(delimiter).put(newZone);
+            copy(chunk, contentEnd, lineEnd, out);
+            count++;
+            if (id != ZoneView.NOT_FOUND) hits++;
+            lineStart = lineEnd;
+        }
+        lines.add(count);
+        matched.add(hits);
+        return out;
+    }
+
+    private int lookup(ByteBuffer chunk, int from, int to, long[] address6) {
+        long address = IPv4Address.parse(chunk, from, to);
+        if (address >= 0) return view.lookup((int) address);
+        if (address == IPv4Address.INVALID) return ZoneView.NOT_FOUND;
+        for (int i = from; i < to; i++) {
+            if (chunk.get(i) == ':') {
+                byte[] text = new byte[to - from];
+                for (int j = 0; j < text.length; j++) text[j] = chunk.get(from + j);
+                return IPv6Address.parse(new String(text, StandardCharsets.US_ASCII), address6)
+                        ? view.lookup6(address6[0], address6[1]) : ZoneView.NOT_FOUND;
+            }
+        }
+        return ZoneView.NOT_FOUND;
+    }
+
+    /**
+     * contentEnd is the end of a line without its line feed and carriage return
+     */
+    private static int contentEnd(ByteBuffer chunk, int lineStart, int lineEnd) {
+        int end = lineEnd;
+        if (end > lineStart && chunk.get(end - 1) == '\n') end--;
+        if (end > lineStart && chunk.get(end - 1) == '\r') end--;
+        return end;
+    }
+
+    private static void copy(ByteBuffer from, int start, int end, ByteBuffer to) {
+        ByteBuffer slice = from.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        to.put(slice);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer out, int needed) {
+        if (out.remaining() >= needed) return out;
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+        out.flip();
+        grown.put(out);
+        return grown;
+    }
+}
@@ -0,0 +1,82 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ZoneAttributeIndex is the reverse index of a ZoneSnapshot: for each of service, oldZone and newZone, the
+ * entry ids carrying each name, as one sorted id array per attribute with an offset per name (CSR layout).
+ * A query takes the shortest matching id list and checks the other attributes of those entries directly.
+ */
+final class ZoneAttributeIndex {
+    private static final int[] NONE = new int[0];
+
+    private final Map<String, Integer> nameIds;
+    private final int[][] attributes;   // services, oldZones, newZones of the snapshot, by entry id
+    private final int[][] offsets;      // per attribute: ids of name n are ids[offsets[n]] up to ids[offsets[n + 1]]
+    private final int[][] ids;
+
+    /**
+     * @param names dictionary of the snapshot
+     * @param services service name id per entry
+     * @param oldZones oldZone name id per entry
+     * @param newZones newZone name id per entry
+     */
+    ZoneAttributeIndex(String[] names, int[] services, int[] oldZones, int[] newZones) {
+        nameIds = new HashMap<>(names.length * 2);
+        for (int n = 0; n < names.length; n++) nameIds.put(names[n], n);
+        attributes = new int[][] {services, oldZones, newZones};
+        offsets = new int[3][];
+        ids = new int[3][];
+        for (int a = 0; a < 3; a++) {
+            int[] values = attributes[a];
+            int[] start = new int[names.length + 1];
+            for (int value : values) start[value + 1]++;
+            for (int n = 0; n < names.length; n++) start[n + 1] += start[n];
+            int[] next = Arrays.copyOf(start, names.length);
+            int[] byName = new int[values.length];
+            for (int id = 0; id < values.length; id++) byName[next[values[id]]++] = id;
+            offsets[a] = start;
+            ids[a] = byName;
+        }
+    }
+
+    /**
+     * select returns the entries matching every given name
+     * @param service service name, or null for any
+     * @param oldZone oldZone name, or null for any
+     * @param newZone newZone name, or null for any
+     * @return matching entry ids in ascending order
+     */
+    int[] select(String service, String oldZone, String newZone) {
+        String[] wanted = {service, oldZone, newZone};
+        int[] nameOf = new int[3];
+        int shortest = -1;
+        for (int a = 0; a < 3; a++) {
+            nameOf[a] = -1;
+            if (wanted[a] == null) continue;
+            Integer n = nameIds.get(wanted[a]);
+            if (n == null) return NONE;
+            nameOf[a] = n;
+            if (shortest < 0 || count(a, n) < count(shortest, nameOf[shortest])) shortest = a;
+        }
+        if (shortest < 0) return NONE;
+
+        int from = offsets[shortest][nameOf[shortest]];
+        int to = offsets[shortest][nameOf[shortest] + 1];
+        int[] selected = new int[to - from];
+        int found = 0;
+        for (int i = from; i < to; i++) {
+            int id = ids[shortest][i];
+            boolean match = true;
+            for (int a = 0; a < 3 && match; a++) match = nameOf[a] < 0 || attributes[a][id] == nameOf[a];
+            if (match) selected[found++] = id;
+        }
+        return found == selected.length ? selected : Arrays.copyOf(selected, found);
+    }
+
+    private int count(int attribute, int name) {
+        return offsets[attribute][name + 1] - offsets[attribute][name];
+    }
+}
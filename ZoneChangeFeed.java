@@ -0,0 +1,208 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * ZoneChangeFeed keeps the subnet changes between consecutive zone views, so consumers that cache lookups can
+ * follow the data incrementally instead of re-reading every subnet.
+ *
+ * Each publish adds one diff from the previous view: subnets added, removed, and rezoned (same network and
+ * CIDR, different service or zones). When only the exceptions changed, just the subnets named by the old or
+ * new exceptions are compared; a new zone mapping is compared in full. Diffs are kept oldest first until they
+ * hold more than capacity changes, then the oldest are dropped; a consumer behind the oldest kept diff has to
+ * start over from a full listing.
+ *
+ * Versions only count within one epoch. A view with another epoch (a restart, or a follower switching leader)
+ * starts the feed over. A diff may span several versions when a follower skipped some; its changes state the
+ * end result, so reapplying changes a consumer already has is harmless.
+ */
+final class ZoneChangeFeed {
+    static final String ADDED = "added";
+    static final String REMOVED = "removed";
+    static final String REZONED = "rezoned";
+
+    private final int capacity;
+    private final ArrayDeque<Diff> diffs = new ArrayDeque<>();
+    private int changes;
+    private long epoch;
+    private long oldest;    // earliest version the kept diffs can bring a consumer forward from
+    private long latest;
+
+    /**
+     * @param capacity number of changes to keep
+     */
+    ZoneChangeFeed(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Change is one subnet that differs between two views; for REMOVED the names are the ones it had
+     */
+    static final class Change {
+        final long version;
+        final String kind;
+        final String subnet;
+        final String CIDR;
+        final String service;
+        final String oldZone;
+        final String newZone;
+
+        Change(long version, String kind, ZoneView view, int id) {
+            this.version = version;
+            this.kind = kind;
+            this.subnet = view.getSubnet(id);
+            this.CIDR = view.getCIDR(id);
+            this.service = view.getService(id);
+            this.oldZone = view.getOldZone(id);
+            this.newZone = view.getNewZone(id);
+        }
+    }
+
+    private static final class Diff {
+        final long to;
+        final List<Change> changes;
+
+        Diff(long to, List<Change> changes) {
+            this.to = to;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * publish records the changes from before to after
+     * @param before view being replaced, or null
+     * @param after view being published
+     */
+    synchronized void publish(ZoneView before, ZoneView after) {
+        if (before == null || before.getEpoch() != after.getEpoch() || epoch != after.getEpoch()
+                || latest != before.getVersion()) {
+            diffs.clear();
+            changes = 0;
+            epoch = after.getEpoch();
+            oldest = after.getVersion();
+            latest = after.getVersion();
+            return;
+        }
+        List<Change> diff = before.getZoneMapping() == after.getZoneMapping()
+                ? diffExceptions(before, after) : diffAll(before, after);
+        latest = after.getVersion();
+        if (diff.size() > capacity) {
+            diffs.clear();
+            changes = 0;
+            oldest = latest;
+            return;
+        }
+        diffs.addLast(new Diff(latest, diff));
+        changes += diff.size();
+        while (changes > capacity) {
+            Diff dropped = diffs.removeFirst();
+            changes -= dropped.changes.size();
+            oldest = dropped.to;
+        }
+    }
+
+    /**
+     * since collects the changes after a version
+     * @param epoch epoch the version belongs to
+     * @param version version the consumer has
+     * @param since receives the changes in publish order
+     * @return the version the changes bring the consumer to, or -1 if the feed no longer reaches back to version
+     */
+    synchronized long since(long epoch, long version, List<Change> since) {
+        if (epoch != this.epoch || version < oldest || version > latest) return -1;
+        for (Diff diff : diffs) {
+            if (diff.to > version) since.addAll(diff.changes);
+        }
+        return latest;
+    }
+
+    /**
+     * diffExceptions compares the subnets named by the exceptions of either view; the zone mapping is shared
+     */
+    private static List<Change> diffExceptions(ZoneView before, ZoneView after) {
+        List<Change> diff = new ArrayList<>();
+        ZoneSnapshot oldExceptions = before.getExceptions();
+        ZoneSnapshot newExceptions = after.getExceptions();
+        for (int id = 0; id < oldExceptions.size(); id++) {
+            addChange(before, find(before, oldExceptions, id), after, find(after, oldExceptions, id), diff);
+        }
+        for (int id = 0; id < newExceptions.size(); id++) {
+            //subnets in both exception snapshots were compared above
+            if (find(oldExceptions, newExceptions, id) != ZoneView.NOT_FOUND) continue;
+            addChange(before, find(before, newExceptions, id), after, find(after, newExceptions, id), diff);
+        }
+        return diff;
+    }
+
+    /**
+     * diffAll walks the visible subnets of both views in (family, network, CIDR) order
+     */
+    private static List<Change> diffAll(ZoneView before, ZoneView after) {
+        List<Change> diff = new ArrayList<>();
+        int[] old4 = before.contained(0, 0);
+        int[] new4 = after.contained(0, 0);
+        int[] old6 = before.contained6(0, 0, 0);
+        int[] new6 = after.contained6(0, 0, 0);
+        diffSorted(before, old4, after, new4, diff);
+        diffSorted(before, old6, after, new6, diff);
+        return diff;
+    }
+
+    private static void diffSorted(ZoneView before, int[] old, ZoneView after, int[] current, List<Change> diff) {
+        int o = 0;
+        int n = 0;
+        while (o < old.length || n < current.length) {
+            int c = o == old.length ? 1 : n == current.length ? -1 : compare(before, old[o], after, current[n]);
+            if (c < 0) addChange(before, old[o++], after, ZoneView.NOT_FOUND, diff);
+            else if (c > 0) addChange(before, ZoneView.NOT_FOUND, after, current[n++], diff);
+            else addChange(before, old[o++], after, current[n++], diff);
+        }
+    }
+
+    /**
+     * addChange adds the change between a subnet in before and the same subnet in after, if any
+     */
+    private static void addChange(ZoneView before, int oldId, ZoneView after, int newId, List<Change> diff) {
+        long version = after.getVersion();
+        if (oldId == ZoneView.NOT_FOUND) {
+            if (newId != ZoneView.NOT_FOUND) diff.add(new Change(version, ADDED, after, newId));
+        } else if (newId == ZoneView.NOT_FOUND) {
+            diff.add(new Change(version, REMOVED, before, oldId));
+        } else if (!Objects.equals(before.getService(oldId), after.getService(newId))
+                || !Objects.equals(before.getOldZone(oldId), after.getOldZone(newId))
+                || !Objects.equals(before.getNewZone(oldId), after.getNewZone(newId))) {
+            diff.add(new Change(version, REZONED, after, newId));
+        }
+    }
+
+    /**
+     * compare orders subnets of one family in two views by network, then CIDR
+     */
+    private static int compare(ZoneView a, int idA, ZoneView b, int idB) {
+        int c = a.isIPv6(idA)
+                ? ZoneSnapshot.compare(a.getHigh(idA), a.getLow(idA), b.getHigh(idB), b.getLow(idB))
+                : Integer.compareUnsigned(a.getNetwork(idA), b.getNetwork(idB));
+        return c != 0 ? c : Integer.compare(a.getPrefix(idA), b.getPrefix(idB));
+    }
+
+    /**
+     * find returns the visible subnet of view with the network and CIDR of an exceptions entry
+     */
+    private static int find(ZoneView view, ZoneSnapshot exceptions, int id) {
+        return exceptions.isIPv6(id)
+                ? view.find6(exceptions.getHigh(id), exceptions.getLow(id), exceptions.getPrefix(id))
+                : view.find(exceptions.getNetwork(id), exceptions.getPrefix(id));
+    }
+
+    /**
+     * find returns the entry of snapshot with the network and CIDR of an entry of other
+     */
+    private static int find(ZoneSnapshot snapshot, ZoneSnapshot other, int id) {
+        return other.isIPv6(id)
+                ? snapshot.find6(other.getHigh(id), other.getLow(id), other.getPrefix(id))
+                : snapshot.find(other.getNetwork(id), other.getPrefix(id));
+    }
+}
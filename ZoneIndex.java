@@ -0,0 +1,140 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.Arrays;
+
+/**
+ * ZoneIndex is an immutable longest-prefix-match index over the networks of a ZoneSnapshot.
+ * Subnets are grouped by CIDR into open-addressed hash tables, one per distinct prefix length.
+ *
+ * Large indexes also keep two tables of 65536 entries keyed by the top 16 bits of the address: the id of the
+ * longest subnet of CIDR 16 or less covering that /16 (DIR-16), and a bit map of the longer prefix lengths
+ * that have a subnet inside it. A lookup then only probes the lengths that can match, and an address outside
+ * every longer subnet costs one array read.
+ */
+final class ZoneIndex {
+    static final int NOT_FOUND = -1;
+
+    //below this many entries the /16 tables cost more to build than they save
+    private static final int DIRECT_MIN_SIZE = 1024;
+    //a slot holds the masked network in the high half and the entry id in the low half
+    private static final long FREE = -1L;
+
+    private final byte[] lengths;   // distinct prefix lengths, longest first
+    private final int[] shifts;     // hash shift per length
+    private final long[][] slots;   // network and id per length, FREE marks a free slot
+    private final int[] tableOf;    // index into lengths per CIDR, or -1
+    private final int firstShort;   // index of the first length of 16 or less
+    private final int[] direct;     // per /16: longest subnet of CIDR <= 16, or null for small indexes
+    private final int[] longer;     // per /16: bit (CIDR - 17) set if a longer subnet lies inside it
+
+    /**
+     * @param networks masked network of each entry
+     * @param prefixes CIDR of each entry
+     * @param count number of entries
+     */
+    ZoneIndex(int[] networks, byte[] prefixes, int count) {
+        int[] perLength = new int[33];
+        for (int id = 0; id < count; id++) perLength[prefixes[id]]++;
+
+        int distinct = 0;
+        for (int n : perLength) if (n > 0) distinct++;
+        lengths = new byte[distinct];
+        shifts = new int[distinct];
+        slots = new long[distinct][];
+        tableOf = new int[33];
+        Arrays.fill(tableOf, -1);
+
+        int l = 0;
+        int shortest = distinct;
+        for (int prefix = 32; prefix >= 0; prefix--) {
+            if (perLength[prefix] == 0) continue;
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(perLength[prefix] * 2 - 1));
+            if (prefix <= 16 && shortest == distinct) shortest = l;
+            lengths[l] = (byte) prefix;
+            shifts[l] = 32 - bits;
+            slots[l] = new long[1 << bits];
+            Arrays.fill(slots[l], FREE);
+            tableOf[prefix] = l++;
+        }
+        firstShort = shortest;
+
+        for (int id = 0; id < count; id++) {
+            long[] s = slots[tableOf[prefixes[id]]];
+            int m = s.length - 1;
+            int slot = hash(networks[id]) >>> shifts[tableOf[prefixes[id]]];
+            while (s[slot] != FREE && (int) (s[slot] >>> 32) != networks[id]) slot = (slot + 1) & m;
+            s[slot] = ((long) networks[id] << 32) | id;
+        }
+
+        if (count < DIRECT_MIN_SIZE) {
+            direct = null;
+            longer = null;
+            return;
+        }
+        direct = new int[1 << 16];
+        longer = new int[1 << 16];
+        Arrays.fill(direct, NOT_FOUND);
+        //shortest first, so a longer subnet overwrites the /16s it covers
+        for (int prefix = 0; prefix <= 16; prefix++) {
+            if (perLength[prefix] == 0) continue;
+            for (long slot : slots[tableOf[prefix]]) {
+                if (slot == FREE) continue;
+                int from = (int) (slot >>> 48);
+                Arrays.fill(direct, from, from + (1 << (16 - prefix)), (int) slot);
+            }
+        }
+        for (int id = 0; id < count; id++) {
+            if (prefixes[id] > 16) longer[networks[id] >>> 16] |= 1 << (prefixes[id] - 17);
+        }
+    }
+
+    /**
+     * lookup finds the most specific subnet containing the address
+     * @param address IPv4 address as an int
+     * @param hidden bit set of entry ids to pass over, or null
+     * @return entry id, or NOT_FOUND
+     */
+    int lookup(int address, long[] hidden) {
+        if (direct == null) return scan(address, hidden, 0);
+
+        int block = address >>> 16;
+        for (int candidates = longer[block]; candidates != 0; candidates &= ~Integer.highestOneBit(candidates)) {
+            int prefix = 48 - Integer.numberOfLeadingZeros(candidates);
+            int id = probe(tableOf[prefix], address & IPv4Address.mask(prefix));
+            if (id != NOT_FOUND && (hidden == null || (hidden[id >>> 6] & (1L << id)) == 0)) return id;
+        }
+        int id = direct[block];
+        if (id == NOT_FOUND || hidden == null || (hidden[id >>> 6] & (1L << id)) == 0) return id;
+        //the covering subnet is hidden, fall back to the shorter lengths
+        return scan(address, hidden, firstShort);
+    }
+
+    /**
+     * scan probes every length from lengths[from] down
+     */
+    private int scan(int address, long[] hidden, int from) {
+        for (int l = from; l < lengths.length; l++) {
+            int id = probe(l, address & IPv4Address.mask(lengths[l]));
+            if (id != NOT_FOUND && (hidden == null || (hidden[id >>> 6] & (1L << id)) == 0)) return id;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * probe finds the entry with exactly this network in one length's table
+     */
+    private int probe(int l, int key) {
+        long[] s = slots[l];
+        int m = s.length - 1;
+        int slot = hash(key) >>> shifts[l];
+        for (long current = s[slot]; current != FREE; current = s[slot]) {
+            if ((int) (current >>> 32) == key) return (int) current;
+            slot = (slot + 1) & m;
+        }
+        return NOT_FOUND;
+    }
+
+    private static int hash(int key) {
+        return key * 0x9E3779B9;
+    }
+}
@@ -0,0 +1,90 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.Arrays;
+
+/**
+ * ZoneIndex6 is the IPv6 counterpart of ZoneIndex: one open-addressed hash table per distinct prefix length,
+ * keyed by the masked network as a pair of longs, probed from the longest length down.
+ */
+final class ZoneIndex6 {
+    static final int NOT_FOUND = ZoneIndex.NOT_FOUND;
+
+    private final int[] lengths;    // distinct prefix lengths, longest first
+    private final int[] shifts;     // hash shift per length
+    private final long[][] keys;    // masked network per length, high and low bits in adjacent slots
+    private final int[][] ids;      // entry ids per length, NOT_FOUND marks a free slot
+
+    /**
+     * @param highs masked high 64 bits of each network
+     * @param lows masked low 64 bits of each network
+     * @param prefixes CIDR of each entry, as unsigned bytes
+     * @param count number of entries
+     * @param firstId id of the first entry, so ids line up with the owning ZoneSnapshot
+     */
+    ZoneIndex6(long[] highs, long[] lows, byte[] prefixes, int count, int firstId) {
+        int[] perLength = new int[129];
+        for (int i = 0; i < count; i++) perLength[prefixes[firstId + i] & 0xFF]++;
+
+        int distinct = 0;
+        for (int n : perLength) if (n > 0) distinct++;
+        lengths = new int[distinct];
+        shifts = new int[distinct];
+        keys = new long[distinct][];
+        ids = new int[distinct][];
+
+        int[] slotOf = new int[129];
+        int l = 0;
+        for (int prefix = 128; prefix >= 0; prefix--) {
+            if (perLength[prefix] == 0) continue;
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(perLength[prefix] * 2 - 1));
+            lengths[l] = prefix;
+            shifts[l] = 64 - bits;
+            keys[l] = new long[2 << bits];
+            ids[l] = new int[1 << bits];
+            Arrays.fill(ids[l], NOT_FOUND);
+            slotOf[prefix] = l++;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int l2 = slotOf[prefixes[firstId + i] & 0xFF];
+            long[] k = keys[l2];
+            int[] v = ids[l2];
+            int m = v.length - 1;
+            int slot = hash(highs[i], lows[i], shifts[l2]);
+            while (v[slot] != NOT_FOUND && (k[2 * slot] != highs[i] || k[2 * slot + 1] != lows[i])) slot = (slot + 1) & m;
+            k[2 * slot] = highs[i];
+            k[2 * slot + 1] = lows[i];
+            v[slot] = firstId + i;
+        }
+    }
+
+    /**
+     * lookup finds the most specific subnet containing the address
+     * @param high high 64 bits of the address
+     * @param low low 64 bits of the address
+     * @param hidden bit set of entry ids to pass over, or null
+     * @return entry id, or NOT_FOUND
+     */
+    int lookup(long high, long low, long[] hidden) {
+        for (int l = 0; l < lengths.length; l++) {
+            long keyHigh = high & IPv6Address.maskHigh(lengths[l]);
+            long keyLow = low & IPv6Address.maskLow(lengths[l]);
+            long[] k = keys[l];
+            int[] v = ids[l];
+            int m = v.length - 1;
+            int slot = hash(keyHigh, keyLow, shifts[l]);
+            for (int id = v[slot]; id != NOT_FOUND; id = v[slot]) {
+                if (k[2 * slot] == keyHigh && k[2 * slot + 1] == keyLow) {
+                    if (hidden == null || (hidden[id >>> 6] & (1L << id)) == 0) return id;
+                    break;
+                }
+                slot = (slot + 1) & m;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private static int hash(long high, long low, int shift) {
+        return (int) (((high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
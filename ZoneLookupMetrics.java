@@ -0,0 +1,112 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZoneLookupMetrics holds the Micrometer meters of ZoneLookupServiceImpl.
+ *
+ * zone.lookup           latency of ZoneLookup, tagged result=hit|exception|miss|cached, as a percentile histogram
+ * zone.lookup.invalid   ZoneLookup calls rejected as empty or invalid IPs
+ * zone.lookup.batch     latency of ZoneLookupBatch; zone.lookup.batch.size is the number of IPs per batch
+ * zone.lookup.cache     hot-IP cache lookups, tagged result=hit|miss
+ * zone.snapshot.*       subnets and exceptions in the live view, its age, rebuild time and refresh failures
+ * zone.repository.query time spent in the ZoneMapping/ExceptionIPs queries
+ */
+final class ZoneLookupMetrics {
+    private final MeterRegistry registry;
+    private final Timer lookupHit;
+    private final Timer lookupException;
+    private final Timer lookupMiss;
+    private final Timer lookupCached;
+    private final Counter lookupInvalid;
+    private final Timer batch;
+    private final DistributionSummary batchSize;
+    private final Timer zoneMappingRebuild;
+    private final Timer exceptionsRebuild;
+    private final Timer zoneMappingQuery;
+    private final Timer exceptionsQuery;
+
+    ZoneLookupMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        lookupHit = lookupTimer("hit");
+        lookupException = lookupTimer("exception");
+        lookupMiss = lookupTimer("miss");
+        lookupCached = lookupTimer("cached");
+        lookupInvalid = Counter.builder("zone.lookup.invalid").register(registry);
+        batch = Timer.builder("zone.lookup.batch").publishPercentileHistogram().register(registry);
+        batchSize = DistributionSummary.builder("zone.lookup.batch.size").baseUnit("ips").register(registry);
+        zoneMappingRebuild = Timer.builder("zone.snapshot.rebuild").tag("snapshot", "zoneMapping").register(registry);
+        exceptionsRebuild = Timer.builder("zone.snapshot.rebuild").tag("snapshot", "exceptions").register(registry);
+        zoneMappingQuery = Timer.builder("zone.repository.query").tag("table", "ZoneMapping").register(registry);
+        exceptionsQuery = Timer.builder("zone.repository.query").tag("table", "ExceptionIPs").register(registry);
+    }
+
+    private Timer lookupTimer(String result) {
+        return Timer.builder("zone.lookup").tag("result", result).publishPercentileHistogram().register(registry);
+    }
+
+    /**
+     * bind registers the gauges that read the service's live state
+     * @param service service to observe
+     */
+    void bind(ZoneLookupServiceImpl service) {
+        Gauge.builder("zone.snapshot.subnets", service, s -> s.zoneView == null ? 0 : s.zoneView.getZoneMapping().size())
+                .register(registry);
+        Gauge.builder("zone.snapshot.exceptions", service, s -> s.zoneView == null ? 0 : s.zoneView.getExceptions().size())
+                .register(registry);
+        Gauge.builder("zone.snapshot.age", service, ZoneLookupServiceImpl::getSnapshotAgeMillis).baseUnit("milliseconds")
+                .register(registry);
+        FunctionCounter.builder("zone.snapshot.refresh.failures", service, s -> s.refreshFailures).register(registry);
+        FunctionCounter.builder("zone.lookup.cache", service, ZoneLookupServiceImpl::getHotCacheHits).tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("zone.lookup.cache", service, ZoneLookupServiceImpl::getHotCacheMisses).tag("result", "miss")
+                .register(registry);
+    }
+
+    /**
+     * recordLookup times one ZoneLookup by its outcome
+     * @param view view that was searched
+     * @param id matching subnet, or ZoneView.NOT_FOUND
+     * @param start System.nanoTime() when the request arrived
+     */
+    void recordLookup(ZoneView view, int id, long start) {
+        Timer timer = id == ZoneView.NOT_FOUND ? lookupMiss : view.isException(id) ? lookupException : lookupHit;
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    void recordCachedLookup(long start) {
+        lookupCached.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    void recordInvalidLookup() {
+        lookupInvalid.increment();
+    }
+
+    void recordBatch(int size, long start) {
+        batch.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSize.record(size);
+    }
+
+    void recordZoneMappingRebuild(long millis) {
+        zoneMappingRebuild.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    void recordExceptionsRebuild(long millis) {
+        exceptionsRebuild.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    void recordZoneMappingQuery(long start) {
+        zoneMappingQuery.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    void recordExceptionsQuery(long start) {
+        exceptionsQuery.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
@@ -6,411 +6,886 @@ import com.comcast.snp.netiq.utilities.maintenance.datasources.invdb.model.Excep
 import com.comcast.snp.netiq.utilities.maintenance.datasources.invdb.model.ZoneMappingEntity;
 import com.comcast.snp.netiq.utilities.maintenance.common.ZoneResult;
 import com.comcast.snp.netiq.utilities.maintenance.datasources.invdb.repository.ExceptionIPsRepository;
-import com.comcast.snp.netiq.utilities.maintenance.datasources.invdb.repository.ZoneMappingRepository;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 @Service("deviceServ")
 public class ZoneLookupServiceImpl implements ZoneLookupService{
     public static final Logger log = LoggerFactory.getLogger(DeviceScheduleServiceImpl.class);
 
     @Autowired
-    private ZoneMappingRepository repository;
+    private ExceptionIPsRepository exceptionRepository;
 
     @Autowired
-    private ExceptionIPsRepository exceptionRepository;
+    private PlatformTransactionManager transactionManager;
 
-    @Value("${regex.ip}")
-    protected String ipRegex;
+    @PersistenceContext
+    private EntityManager entityManager;
 
-    Pattern ipPattern = null;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
 
-    LoadingCache<String, Map<String, List>> zoneMappingCache;
-    Integer zoneMappingCacheReloadHours = 24;
-    LoadingCache<String, Map<String, List>> exceptionsCache;
-    Integer exceptionsCacheReloadSeconds = 60;
-    LoadingCache<String, Map<String, List>> aggregateCache;
-    Integer aggregateCacheReloadSeconds = exceptionsCacheReloadSeconds;
+    //rows of the streamed zone mapping query fetched per round trip. The query runs in a read-only transaction,
+    //which PostgreSQL needs to honour it; MySQL also needs useCursorFetch=true on the JDBC URL. Otherwise drivers
+    //read the whole result into memory.
+    @Value("${zoneMapping.load.fetchSize:10000}")
+    protected int zoneMappingFetchSize;
 
-    /**
-     * initializes all the caches to identify subnet/exceptions
-     */
-    @PostConstruct
-    public void init() {
-        zoneMappingCache = CacheBuilder.newBuilder().maximumSize(1).refreshAfterWrite(zoneMappingCacheReloadHours, TimeUnit.HOURS).build(
-                new CacheLoader<String, Map<String, List>>() {
-                    @Override
-                    public Map<String, List> load(String key) throws Exception {
-                        //for any key given, it will return the hash map containing zoneMapping
-                        Map<String, List> zoneInfoZoneMapping = new HashMap<String, List>();
-                        //add all colored zones, and exceptions
-                        List<ZoneMappingEntity> allDevices = new ArrayList<>();
-                        allDevices.addAll(repository.findByOldZone("BLUE"));
-                        allDevices.addAll(repository.findByOldZone("RED"));
-                        allDevices.addAll(repository.findByOldZone("GREEN"));
-                        allDevices.addAll(repository.findByOldZone("BLACK"));
-                        allDevices.addAll(repository.findByOldZone("WHITE"));
-                        allDevices.addAll(repository.findByOldZone("N/A"));
-                        for (ZoneMappingEntity d: allDevices) addDeviceToZoneInfo(zoneInfoZoneMapping, d);
-                        return zoneInfoZoneMapping;
-                    }
-                }
+    //addExceptions persists ExceptionIPsEntity rows, flushing after this many. The flushes reach the database as
+    //JDBC batches when hibernate.jdbc.batch_size is set and the entity's id is not generated by IDENTITY
+    @Value("${exceptions.insert.batchSize:1000}")
+    protected int exceptionsInsertBatchSize;
 
-        );
-
-        exceptionsCache = CacheBuilder.newBuilder().maximumSize(1).refreshAfterWrite(exceptionsCacheReloadSeconds, TimeUnit.SECONDS).build(
-                new CacheLoader<String, Map<String, List>>() {
-                    @Override
-                    public Map<String, List> load(String key) throws Exception {
-                        //for any String key given, will return all exceptions
-                        Map<String, List> zoneInfoExceptions = new HashMap<String, List>();
-                        List<ExceptionIPsEntity> allExceptions = new ArrayList<>();
-                        allExceptions.addAll(exceptionRepository.findByService("EXCEPTION"));
-                        for (ExceptionIPsEntity e: allExceptions) addExceptionToZoneInfo(zoneInfoExceptions, e);
-                        return zoneInfoExceptions;
-                    }
-                }
-        );
+    //compiled snapshots are saved here after each rebuild and read at startup; empty disables it
+    @Value("${zone.snapshot.file:}")
+    protected String snapshotFile;
 
-        aggregateCache = CacheBuilder.newBuilder().maximumSize(1).refreshAfterWrite(aggregateCacheReloadSeconds, TimeUnit.SECONDS).build(
-                new CacheLoader<String, Map<String, List>>() {
-                    @Override
-                    public Map<String, List> load(String key) throws Exception {
-                        Map<String, List> zoneMappingMap = zoneMappingCache.get("key");
-                        Map<String, List> exceptionsMap = exceptionsCache.get("key");
+    //a saved snapshot older than this is ignored at startup
+    @Value("${zone.snapshot.maxAgeHours:24}")
+    protected int snapshotMaxAgeHours;
 
-                        Iterator zoneMappingIter = zoneMappingMap.entrySet().iterator();
-                        Iterator exceptionsIter = exceptionsMap.entrySet().iterator();
+    //standalone: load from the database; leader: load from the database and publish the snapshots to
+    //zone.distribution.source; follower: never query the database, pull the leader's snapshots from
+    //zone.distribution.source (a shared directory, or the leader's getDistributionFile URL)
+    @Value("${zone.distribution.role:standalone}")
+    protected String distributionRole;
 
-                        Map<String,List> zoneInfoAggregate =  new HashMap<String, List>();
+    @Value("${zone.distribution.source:}")
+    protected String distributionSource;
 
-                        while(zoneMappingIter.hasNext()){
-                            Map.Entry current = (Map.Entry) zoneMappingIter.next();
+    @Value("${zone.distribution.pollSeconds:5}")
+    protected int distributionPollSeconds;
 
-                            String subnet = current.getKey().toString();
-                            if(!exceptionsMap.containsKey(subnet)) zoneInfoAggregate.put(subnet,(List)current.getValue());
-                        }
+    //streamDevices page size when the caller does not pass a limit, and the largest limit accepted
+    @Value("${zoneLookup.devices.pageSize:10000}")
+    protected int devicesPageSize;
 
-                        while(exceptionsIter.hasNext()){
-                            Map.Entry current = (Map.Entry) exceptionsIter.next();
-                            zoneInfoAggregate.put(current.getKey().toString(),(List)current.getValue());
-                        }
+    @Value("${zoneLookup.devices.maxPageSize:100000}")
+    protected int devicesMaxPageSize;
 
-                        return zoneInfoAggregate;
+    //ZoneLookup responses kept for the hottest IPv4 addresses; 0 disables the cache
+    @Value("${zoneLookup.hotCache.size:65536}")
+    protected int hotCacheSize;
 
-                    }
-                }
-        );
+    //IPv4 lookup engine: "index" probes the snapshot indexes per prefix length, "ranges" flattens every view into a
+    //ZoneRangeTable, trading a longer publish and about 16 bytes per subnet for a single search per lookup
+    @Value("${zoneLookup.engine:index}")
+    protected String lookupEngine;
+
+    //subnet changes kept for getChangesSince; consumers further behind start over from a full listing
+    @Value("${zoneLookup.changes.capacity:100000}")
+    protected int changesCapacity;
+
+    //executor of the *Async lookups: "virtual" gives each call a virtual thread where the JVM has them (Java 21+),
+    //otherwise, and with "pool", zoneLookup.async.threads platform threads (0: one per core)
+    @Value("${zoneLookup.async.executor:virtual}")
+    protected String asyncExecutor;
+
+    @Value("${zoneLookup.async.threads:0}")
+    protected int asyncThreads;
+
+    static final List<String> ZONES = Collections.unmodifiableList(Arrays.asList("BLUE", "RED", "GREEN", "BLACK", "WHITE", "N/A"));
+    private CriteriaQuery<Object[]> zoneMappingQuery;
+    private TransactionTemplate zoneMappingTransaction;
+
+    //snapshots are rebuilt by the refresher and swapped in; lookups only ever read zoneView
+    volatile ZoneSnapshot zoneMappingSnapshot;
+    Integer zoneMappingCacheReloadHours = 24;
+    volatile ZoneSnapshot exceptionsSnapshot;
+    Integer exceptionsCacheReloadSeconds = 60;
+    volatile ZoneView zoneView;
+    //epoch of the views this node numbers itself; a view carries its version and the epoch of the node that
+    //numbered it (this one, or the leader for followers), which together identify the data every node serves
+    private final long startedAt = System.currentTimeMillis();
+    private ZoneSnapshotDistribution distribution;
+    //follower: zone mapping file of the snapshot being served
+    private String pulledZoneMappingFile;
+    //diffs between published views, replaced in init
+    ZoneChangeFeed changeFeed = new ZoneChangeFeed(100000);
+    //compact name table of the view it was encoded from
+    private volatile AbstractMap.SimpleImmutableEntry<ZoneView, byte[]> compactNames;
+    private static final MediaType COMPACT = MediaType.parseMediaType(ZoneResultCodec.MEDIA_TYPE);
+    //hot-IP results of zoneView, replaced with an empty cache on every publish
+    volatile ZoneResultCache<HotResult> hotIPs;
+    final LongAdder hotIPHits = new LongAdder();
+    final LongAdder hotIPMisses = new LongAdder();
+    //bound to meterRegistry in init; until then, and without a registry, meters record into a private one
+    ZoneLookupMetrics metrics = new ZoneLookupMetrics(new SimpleMeterRegistry());
+    //serializes swaps of the snapshots and zoneView
+    private final Object exceptionsLock = new Object();
+    //exceptions added on this node while refreshExceptions loads, laid over its result; null between loads.
+    //Guarded by exceptionsLock
+    private List<Consumer<ZoneSnapshot.Builder>> addedDuringLoad;
+    //oldZone and newZone of exceptions being saved on this node, by subnet/CIDR, until their transaction
+    //completes; a concurrent add checks them as well as exceptionsSnapshot. Guarded by exceptionsLock
+    private final Map<String, String[]> unsavedExceptions = new HashMap<>();
+    private ScheduledExecutorService refresher;
+    //runs the *Async lookups, replaced in init
+    ExecutorService lookupExecutor = ForkJoinPool.commonPool();
+
+    //refresh metrics: when each snapshot was last built and how long that took, in ms
+    volatile long zoneMappingLoadedAt;
+    volatile long zoneMappingBuildMillis;
+    volatile long exceptionsLoadedAt;
+    volatile long exceptionsBuildMillis;
+    volatile long refreshFailures;
+
+    //batches with at least this many distinct IPs are resolved in parallel
+    int batchParallelThreshold = 4096;
+    //entries in ZoneLookupBatch results for IPs that did not match / did not parse
+    static final int BATCH_NO_MATCH = -1;
+    static final int BATCH_INVALID_IP = -2;
+    //prefixQuery kinds
+    private static final int CONTAINED = 0;
+    private static final int COVERING = 1;
+    private static final int GAPS = 2;
 
-        log.info("Zone Lookup Service caches built");
+    /**
+     * starts the refresher that builds the zone mapping and exceptions snapshots in the background.
+     * Lookups are answered once both have loaded, and keep using the last good snapshots if a reload fails.
+     */
+    @PostConstruct
+    public void init() {
+        if (exceptionsInsertBatchSize <= 0) throw new IllegalStateException("exceptions.insert.batchSize must be positive, was " + exceptionsInsertBatchSize);
+        //built against the ZoneMappingEntity mapping now, so a mismatch stops startup instead of failing every refresh
+        zoneMappingQuery = zoneMappingQuery();
+        zoneMappingTransaction = new TransactionTemplate(transactionManager);
+        zoneMappingTransaction.setReadOnly(true);
+
+        if (meterRegistry != null) metrics = new ZoneLookupMetrics(meterRegistry);
+        metrics.bind(this);
+
+        if (!"standalone".equals(distributionRole)) {
+            if (distributionSource == null || distributionSource.isEmpty()) throw new IllegalStateException("zone.distribution.source is required for role " + distributionRole);
+            //a pull that hears nothing for a few polls gives up; the next poll retries
+            int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(Math.max(10, 3 * distributionPollSeconds));
+            distribution = new ZoneSnapshotDistribution(distributionSource, timeoutMillis);
+        }
+
+        lookupExecutor = newLookupExecutor(asyncExecutor, asyncThreads);
+        changeFeed = new ZoneChangeFeed(changesCapacity);
+        loadSnapshotFile();
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "zone-snapshot-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if ("follower".equals(distributionRole)) {
+            refresher.scheduleWithFixedDelay(this::pullSnapshots, 0, distributionPollSeconds, TimeUnit.SECONDS);
+        } else {
+            refresher.scheduleWithFixedDelay(this::refreshZoneMapping, 0, zoneMappingCacheReloadHours, TimeUnit.HOURS);
+            refresher.scheduleWithFixedDelay(this::refreshExceptions, 0, exceptionsCacheReloadSeconds, TimeUnit.SECONDS);
+        }
+        log.info("Zone Lookup Service refresher started as " + distributionRole);
     }
 
+    @PreDestroy
+    public void shutdown() {
+        if (refresher != null) refresher.shutdownNow();
+        if (lookupExecutor != ForkJoinPool.commonPool()) lookupExecutor.shutdown();
+    }
 
     /**
-     * addDeviceToZoneInfo will add subnet, info (CIDR, service, oldZone, newZone) to zoneInfo
-     * @param zoneInfo map containing all possible subnets
-     * @param d device to add
+     * newLookupExecutor creates the executor of the *Async lookups. Virtual threads are looked up reflectively
+     * so the service still runs on Java 8.
+     * @param kind "virtual" or "pool"
+     * @param threads pool size, 0 for one per core
+     * @return the executor
      */
-    private void addDeviceToZoneInfo (Map zoneInfo, Object d){
-        ZoneMappingEntity o = (ZoneMappingEntity) d;
-        List<String> subnetList = new ArrayList<>();
-        subnetList.add(o.getCidr());
-        subnetList.add(o.getService());
-        subnetList.add(o.getOldZone());
-        subnetList.add(o.getNewZone());
-        zoneInfo.put(o.getSubnet(),subnetList);
+    static ExecutorService newLookupExecutor(String kind, int threads) {
+        if ("virtual".equals(kind)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.info("Virtual threads are not available, async lookups run on a thread pool");
+            }
+        }
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(size, runnable -> {
+            Thread thread = new Thread(runnable, "zone-lookup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * addExceptionToZoneInfo will add subnet, info (CIDR, service, oldZone, newZone) to zoneInfo
-     * @param zoneInfo map containing all possible subnets
-     * @param e exception to add
+     * refreshZoneMapping reloads maintenance.ZoneMapping; on failure it is retried on the exceptions schedule.
+     * Like the other refresher tasks it never throws, since that would cancel its schedule.
      */
-    private void addExceptionToZoneInfo (Map zoneInfo, Object e){
-        List<String> subnetList = new ArrayList<>();
-        ExceptionIPsEntity o = (ExceptionIPsEntity) e;
-        subnetList.add(o.getCidr());
-        subnetList.add(o.getService());
-        subnetList.add(o.getOldZone());
-        subnetList.add(o.getNewZone());
-        zoneInfo.put(o.getSubnet(),subnetList);
+    void refreshZoneMapping() {
+        long start = System.currentTimeMillis();
+        ZoneSnapshot zoneMapping;
+        try {
+            zoneMapping = loadZoneMapping();
+        } catch (Exception e) {
+            refreshFailures++;
+            log.error("Zone mapping reload failed, keeping the last snapshot: " + e);
+            refresher.schedule(this::refreshZoneMapping, exceptionsCacheReloadSeconds, TimeUnit.SECONDS);
+            return;
+        }
+        zoneMappingBuildMillis = System.currentTimeMillis() - start;
+        zoneMappingLoadedAt = System.currentTimeMillis();
+        metrics.recordZoneMappingRebuild(zoneMappingBuildMillis);
+        log.info("Zone mapping snapshot built: " + zoneMapping.size() + " subnets in " + zoneMappingBuildMillis + " ms");
+        try {
+            synchronized (exceptionsLock) {
+                publish(zoneMapping, exceptionsSnapshot);
+            }
+            saveSnapshotFile();
+            distributeSnapshots();
+        } catch (RuntimeException e) {
+            refreshFailures++;
+            log.error("Zone mapping publish failed, keeping the last snapshot: " + e);
+        }
     }
 
     /**
-     * getAllDevices() returns all subnets with info (CIDR, service, zones)
-     * @return Map of subnet, info pairs
+     * refreshExceptions reloads maintenance.ExceptionIPs, keeping the current snapshot when nothing changed.
+     * Exceptions added on this node during the load are added to its result again, since the load may have
+     * started before they were committed, so lookups never lose a write they already saw.
      */
-    @Override
-    public ResponseEntity<APIStatus> getAllDevices() {
-        Map<String, List> allMap;
-        List<SubnetSchema> output = new ArrayList<>();
+    void refreshExceptions() {
+        long start = System.currentTimeMillis();
+        List<Consumer<ZoneSnapshot.Builder>> added;
+        synchronized (exceptionsLock) {
+            addedDuringLoad = added = new ArrayList<>();
+        }
+        ZoneSnapshot exceptions;
         try {
-            allMap = aggregateCache.get("key");
-        } catch (ExecutionException e){
-            return null;
+            exceptions = loadExceptions();
+        } catch (Exception e) {
+            refreshFailures++;
+            log.error("Exceptions reload failed, keeping the last snapshot: " + e);
+            synchronized (exceptionsLock) {
+                addedDuringLoad = null;
+            }
+            return;
         }
+        exceptionsBuildMillis = System.currentTimeMillis() - start;
+        exceptionsLoadedAt = System.currentTimeMillis();
+        metrics.recordExceptionsRebuild(exceptionsBuildMillis);
+        try {
+            synchronized (exceptionsLock) {
+                addedDuringLoad = null;
+                if (!added.isEmpty()) {
+                    //the builder keeps one entry per subnet/CIDR, so exceptions the load did include are not doubled
+                    ZoneSnapshot.Builder zoneInfoExceptions = new ZoneSnapshot.Builder();
+                    for (int id = 0; id < exceptions.size(); id++) zoneInfoExceptions.add(exceptions, id);
+                    for (Consumer<ZoneSnapshot.Builder> additions : added) additions.accept(zoneInfoExceptions);
+                    exceptions = zoneInfoExceptions.build();
+                }
+                if (exceptions.sameEntries(exceptionsSnapshot)) return;
+                log.info("Exceptions changed, " + exceptions.size() + " exceptions loaded");
+                publish(zoneMappingSnapshot, exceptions);
+            }
+            saveSnapshotFile();
+            distributeSnapshots();
+        } catch (RuntimeException e) {
+            refreshFailures++;
+            log.error("Exceptions publish failed, keeping the last snapshot: " + e);
+        }
+    }
 
-        Iterator all = allMap.entrySet().iterator();
-        while(all.hasNext()) {
-            Map.Entry current = (Map.Entry) all.next();
-            List val = (List) current.getValue();
-            output = addSS(output, current.getKey().toString(), val.get(0).toString(),
-                    val.get(1).toString(), val.get(2).toString(), val.get(3).toString());
+    /**
+     * loadSnapshotFile publishes the snapshots saved by a previous run, unless the file is missing, stale or
+     * corrupt; the refresher then reconciles them with the database in the background
+     */
+    private void loadSnapshotFile() {
+        if (snapshotFile == null || snapshotFile.isEmpty()) return;
+        Path path = Paths.get(snapshotFile);
+        if (!path.toFile().exists()) return;
+        long start = System.currentTimeMillis();
+        ZoneSnapshotFile saved;
+        try {
+            saved = ZoneSnapshotFile.read(path);
+        } catch (IOException e) {
+            log.warn("Ignoring zone snapshot file " + snapshotFile + ": " + e.getMessage());
+            return;
         }
-        Map<String,Object> response = new HashMap<>();
-        response.put("response",output);
-        return buildResponseEntity(new APIStatus(HttpStatus.OK, "All subnets", response));
+        if (start - saved.getCreatedAt() > TimeUnit.HOURS.toMillis(snapshotMaxAgeHours)) {
+            log.warn("Ignoring zone snapshot file " + snapshotFile + ": older than " + snapshotMaxAgeHours + " hours");
+            return;
+        }
+        synchronized (exceptionsLock) {
+            zoneMappingLoadedAt = saved.getCreatedAt();
+            exceptionsLoadedAt = saved.getCreatedAt();
+            publish(saved.getZoneMapping(), saved.getExceptions());
+        }
+        log.info("Zone snapshot file loaded: " + saved.getZoneMapping().size() + " subnets, "
+                + saved.getExceptions().size() + " exceptions in " + (System.currentTimeMillis() - start) + " ms");
+    }
 
+    /**
+     * saveSnapshotFile writes the current snapshots for the next startup
+     */
+    private void saveSnapshotFile() {
+        if (snapshotFile == null || snapshotFile.isEmpty()) return;
+        ZoneSnapshot zoneMapping;
+        ZoneSnapshot exceptions;
+        synchronized (exceptionsLock) {
+            zoneMapping = zoneMappingSnapshot;
+            exceptions = exceptionsSnapshot;
+        }
+        if (zoneMapping == null || exceptions == null) return;
+        try {
+            ZoneSnapshotFile.write(Paths.get(snapshotFile), zoneMapping, exceptions);
+        } catch (IOException e) {
+            log.warn("Could not save zone snapshot file " + snapshotFile + ": " + e.getMessage());
+        }
     }
 
+    /**
+     * distributeSnapshots hands the current view to followers, on the leader only
+     */
+    private void distributeSnapshots() {
+        if (!"leader".equals(distributionRole)) return;
+        ZoneView view = zoneView;
+        if (view == null) return;
+        try {
+            distribution.write(view.getEpoch(), view.getVersion(), view.getZoneMapping(), view.getExceptions());
+        } catch (IOException e) {
+            log.warn("Could not distribute zone snapshot version " + view.getVersion() + ": " + e.getMessage());
+        }
+    }
 
     /**
-     * getSubnet
-     * @param subnet subnet query and get info about
-     * @return information about queried subnet
+     * pullSnapshots loads the version the leader published last, on followers; the zone mapping file is only
+     * read when it changed, so most pulls only read the (small) exceptions file
      */
-    @Override
-    public ResponseEntity<APIStatus> getSubnet(String subnet) {
+    void pullSnapshots() {
+        long start = System.currentTimeMillis();
+        try {
+            ZoneSnapshotDistribution.Manifest manifest = distribution.readManifest();
+            ZoneView current = zoneView;
+            if (manifest == null || current != null && manifest.epoch == current.getEpoch() && manifest.version == current.getVersion()) return;
+            ZoneSnapshot zoneMapping = zoneMappingSnapshot;
+            if (zoneMapping == null || !manifest.zoneMappingFile.equals(pulledZoneMappingFile)) {
+                zoneMapping = distribution.read(manifest.zoneMappingFile).getZoneMapping();
+                zoneMappingLoadedAt = System.currentTimeMillis();
+            }
+            ZoneSnapshot exceptions = distribution.read(manifest.exceptionsFile).getExceptions();
+            exceptionsLoadedAt = System.currentTimeMillis();
+            synchronized (exceptionsLock) {
+                publish(zoneMapping, exceptions, manifest.epoch, manifest.version);
+            }
+            pulledZoneMappingFile = manifest.zoneMappingFile;
+            log.info("Pulled zone snapshot version " + manifest.version + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            refreshFailures++;
+            log.warn("Zone snapshot pull failed, keeping the last snapshot: " + e.getMessage());
+        } catch (RuntimeException e) {
+            refreshFailures++;
+            log.error("Zone snapshot pull failed, keeping the last snapshot: " + e);
+        }
+    }
 
+    /**
+     * getDistributionFile serves the leader's manifest and snapshot files to followers pulling over HTTP
+     * @param name file name from the manifest, or "manifest"
+     * @return the file; 404 if this node is not a leader or the file does not exist
+     */
+    public ResponseEntity<StreamingResponseBody> getDistributionFile(String name) {
+        if (!"leader".equals(distributionRole) || !ZoneSnapshotDistribution.isFileName(name)) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        Path path = distribution.resolve(name);
+        if (!path.toFile().exists()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        return new ResponseEntity<>(out -> Files.copy(path, out), headers, HttpStatus.OK);
+    }
 
-        List val = new ArrayList();
-        List<SubnetSchema> output = new ArrayList<>();
+    /**
+     * getChangesSince returns the subnets added, removed or rezoned after a snapshot version, so consumers that
+     * cached subnets or lookup answers can stay in sync without re-reading getAllDevices
+     * @param since version the consumer has, as returned by getSnapshotVersion or a previous call
+     * @return "changes" in publish order and the "version" to ask from next; 410 if the node no longer keeps the
+     * changes since then (or restarted), in which case the consumer starts over from a full listing
+     */
+    public ResponseEntity<APIStatus> getChangesSince(String since) {
         Map<String,Object> response = new HashMap<>();
-
+        int dash = since == null ? -1 : since.indexOf('-');
+        long epoch;
+        long version;
         try {
-            val = aggregateCache.get("key").get(subnet);
-        } catch (Exception e){
-            log.warn("Subnet not found");
+            if (dash < 0) throw new NumberFormatException();
+            epoch = Long.parseLong(since.substring(0, dash), 16);
+            version = Long.parseLong(since.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid version", response));
         }
-        if (Objects.equals(null,val)) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Subnet not found", response));
 
-        output = addSS(output,subnet,val.get(0).toString(),
-                val.get(1).toString(),val.get(2).toString(),val.get(3).toString());
-        response.put("response",output);
-        return buildResponseEntity(new APIStatus(HttpStatus.OK, "Subnet found", response));
+        List<ZoneChangeFeed.Change> changes = new ArrayList<>();
+        long latest = changeFeed.since(epoch, version, changes);
+        if (latest < 0) return buildResponseEntity(new APIStatus(HttpStatus.GONE, "Changes since " + since + " are no longer available", response));
+        List<Map<String,Object>> output = new ArrayList<>(changes.size());
+        for (ZoneChangeFeed.Change change : changes) {
+            Map<String,Object> entry = new LinkedHashMap<>();
+            entry.put("version", change.version);
+            entry.put("change", change.kind);
+            entry.put("subnet", change.subnet);
+            entry.put("CIDR", change.CIDR);
+            entry.put("service", change.service);
+            entry.put("oldZone", change.oldZone);
+            entry.put("newZone", change.newZone);
+            output.add(entry);
+        }
+        response.put("response", output);
+        response.put("version", Long.toHexString(epoch) + "-" + latest);
+        //changes are not logged; buildResponseEntity would log all of them
+        APIStatus apiStatus = new APIStatus(HttpStatus.OK, changes.size() + " changes", response);
+        return new ResponseEntity<>(apiStatus, apiStatus.getStatus());
     }
 
+    /**
+     * getSnapshotVersion identifies the data this node serves; followers report their leader's version
+     * @return "epoch-version", or null before the first load
+     */
+    public String getSnapshotVersion() {
+        ZoneView view = zoneView;
+        return view == null ? null : Long.toHexString(view.getEpoch()) + "-" + view.getVersion();
+    }
 
     /**
-     * toOctet will take in a binary bit string and ensure that it is returned with 8 total bits
-     * @param number bit string of some length
-     * @return number of length 8
+     * publish swaps in new snapshots, and a zone view over them with the next version; callers hold exceptionsLock
      */
-    private String toOctet (String number){
-        if (number.length()==8) return number;
-        while(number.length() != 8) number = '0' + number;
-        return number;
+    private void publish(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions) {
+        ZoneView current = zoneView;
+        publish(zoneMapping, exceptions, startedAt, current != null && current.getEpoch() == startedAt ? current.getVersion() + 1 : 1);
     }
 
     /**
-     * toValue converts the binary octet value to decimal
-     * @param index the index of the octet to convert
-     * @param binVal the octet to convert to decimal
-     * @return an integer decimal value for binVal up to index
+     * publish swaps in new snapshots and a zone view over them; callers hold exceptionsLock. Nothing is
+     * swapped if building the view fails, so the snapshots always match zoneView.
+     * @param zoneMapping zone mapping snapshot, or null before the first load
+     * @param exceptions exceptions snapshot, or null before the first load
+     * @param epoch start time of the node that numbered the version
+     * @param version version of the new view
      */
-    private int toValue (int index, String binVal){
-        if (index==-1) index = 7;
-        binVal = binVal.substring(0,index+1);
-        while (binVal.length()!=8) binVal += '0';
-        return Integer.parseInt(binVal,2);
+    private void publish(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions, long epoch, long version) {
+        if (zoneMapping == null || exceptions == null) {
+            zoneMappingSnapshot = zoneMapping;
+            exceptionsSnapshot = exceptions;
+            return;
+        }
+        ZoneView view = new ZoneView(zoneMapping, exceptions, epoch, version, "ranges".equals(lookupEngine));
+        //recorded first, so a consumer never holds a version the feed does not know yet
+        changeFeed.publish(zoneView, view);
+        zoneMappingSnapshot = zoneMapping;
+        exceptionsSnapshot = exceptions;
+        zoneView = view;
+        hotIPs = hotCacheSize > 0 ? new ZoneResultCache<>(view, hotCacheSize) : null;
     }
 
     /**
-     * updateBest updates the best match (passed in) with new info
-     * @param best List containing subnet, CIDR< service, oldZone, newZone info
-     * @param subnet String
-     * @param CIDR String
-     * @param service String
-     * @param oldZone String
-     * @param newZone String
-     * @return best newly updated
+     * getSnapshotAgeMillis is the time since the older of the two snapshots was loaded
+     * @return age in ms, or -1 before the first load
      */
-    private List<String> updateBest (List<String> best, String subnet, String CIDR, String service, String oldZone, String newZone) {
-        best.clear();
-        best.add(subnet);
-        best.add(CIDR);
-        best.add(service);
-        best.add(oldZone);
-        best.add(newZone);
+    public long getSnapshotAgeMillis() {
+        if (zoneView == null) return -1;
+        return System.currentTimeMillis() - Math.min(zoneMappingLoadedAt, exceptionsLoadedAt);
+    }
 
-        return best;
+    /**
+     * @return ZoneLookup calls answered from the hot-IP cache
+     */
+    public long getHotCacheHits() {
+        return hotIPHits.sum();
     }
 
     /**
-     * parse the IP/subnet and the value to convert to binary
-     * @param IP address
-     * @param octetToCheck integer of octet to check
-     * @return List containing the split IP/subnet and the number to convert to binary
+     * @return IPv4 ZoneLookup calls that had to search the zone view
      */
-    private List<String> parse (String IP, int octetToCheck) {
-        List<String> output = new ArrayList<>();
+    public long getHotCacheMisses() {
+        return hotIPMisses.sum();
+    }
 
-        String ipSplit = "";
-        String decToBin = "";
-        int dots = 0;
-        for (int i=0; i<IP.length();i++){
-            if (dots == octetToCheck){
-                break;
-            }
-            if (IP.charAt(i)=='.'){
-                ipSplit += '.';
-                dots++;
-            } else {
-                ipSplit += IP.charAt(i);
-            }
-        }
+    /**
+     * zoneMappingQuery selects subnet, cidr, service, oldZone and newZone of the colored zones. It names
+     * ZoneMappingEntity properties (those findByOldZone used), so table and columns come from the entity mapping.
+     * @return the query; it fails if the mapping has no such properties
+     */
+    private CriteriaQuery<Object[]> zoneMappingQuery() {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<ZoneMappingEntity> zone = query.from(ZoneMappingEntity.class);
+        return query.multiselect(zone.get("subnet"), zone.get("cidr"), zone.get("service"), zone.get("oldZone"), zone.get("newZone"))
+                .where(zone.get("oldZone").in(ZONES));
+    }
 
-        //get the octet in question for IP
-        int dots2 = 0;
-        for (int j =0; j<IP.length(); j++){
-            if (dots2 == octetToCheck){
-                decToBin += IP.charAt(j);
-            } else if (dots2 == octetToCheck+1){
-                break;
-            }
-            if (IP.charAt(j)=='.'){
-                dots2++;
+    /**
+     * loadZoneMapping reads all colored zones from maintenance.ZoneMapping in one query, streaming each row
+     * straight into the snapshot builder instead of materializing ZoneMappingEntity lists. The query selects
+     * columns, not entities, and runs in a read-only transaction, without which PostgreSQL ignores the fetch size.
+     * @return snapshot of the zone mapping
+     */
+    private ZoneSnapshot loadZoneMapping(){
+        ZoneSnapshot.Builder zoneInfoZoneMapping = new ZoneSnapshot.Builder();
+        long start = System.nanoTime();
+        zoneMappingTransaction.executeWithoutResult(status -> {
+            try (Stream<Object[]> rows = entityManager.createQuery(zoneMappingQuery)
+                    .setHint("org.hibernate.fetchSize", zoneMappingFetchSize).getResultStream()) {
+                rows.forEach(row -> addDeviceToZoneInfo(zoneInfoZoneMapping, row));
             }
-        }
+        });
+        metrics.recordZoneMappingQuery(start);
+        return zoneInfoZoneMapping.build();
+    }
 
-        output.add(ipSplit);
-        output.add(decToBin);
-        return output;
+    /**
+     * loadExceptions reads all exceptions from maintenance.ExceptionIPs. Every refresh reads the whole table;
+     * only the rebuild after it is skipped when nothing changed. A max-id delta would need the id mapping of
+     * ExceptionIPsEntity, whose source is not part of this module, and a full pass would still be needed to
+     * see deletes and updates.
+     * @return snapshot of the exceptions
+     */
+    private ZoneSnapshot loadExceptions(){
+        ZoneSnapshot.Builder zoneInfoExceptions = new ZoneSnapshot.Builder();
+        long start = System.nanoTime();
+        List<ExceptionIPsEntity> exceptions = exceptionRepository.findByService("EXCEPTION");
+        metrics.recordExceptionsQuery(start);
+        for (ExceptionIPsEntity e: exceptions) addExceptionToZoneInfo(zoneInfoExceptions, e);
+        return zoneInfoExceptions.build();
+    }
 
+    /**
+     * addDeviceToZoneInfo will add subnet, info (CIDR, service, oldZone, newZone) to zoneInfo
+     * @param zoneInfo snapshot builder containing all possible subnets
+     * @param row ZoneMapping row to add, in the column order of zoneMappingQuery
+     */
+    private void addDeviceToZoneInfo (ZoneSnapshot.Builder zoneInfo, Object[] row){
+        zoneInfo.add((String) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4]);
     }
 
     /**
-     * performCheck for a particular octet for the given IP and all possible subnets
-     * @param IP user-inputted IP
-     * @param zoneInfo all possible subnets
-     * @param octet the octet performing the check on
-     * @return the best match
+     * addExceptionToZoneInfo will add subnet, info (CIDR, service, oldZone, newZone) to zoneInfo
+     * @param zoneInfo snapshot builder containing all possible subnets
+     * @param e exception to add
      */
-    private List<String> performCheck (String IP, Map<String,List> zoneInfo, int octet){
-        List<String> fewerOctets = new ArrayList<>();
+    private void addExceptionToZoneInfo (ZoneSnapshot.Builder zoneInfo, ExceptionIPsEntity e){
+        zoneInfo.add(e.getSubnet(), e.getCidr(), e.getService(), e.getOldZone(), e.getNewZone());
+    }
 
-        //break up IP into chunks, added to fewerOctets
-        String ipChunk = "";
-        int dotCount = 0;
-        for (int i=0;i<IP.length();i++){
-            if (dotCount == octet){ //stop when added the sufficient number of octets to fewerOctets
-                break;
-            }
-            if (IP.charAt(i)=='.'){
-                dotCount++;
-                fewerOctets.add(ipChunk);
-                ipChunk = "";
-            } else {
-                ipChunk += IP.charAt(i);
-            }
-        }
+    /**
+     * getAllDevices() returns all subnets with info (CIDR, service, zones)
+     * @return Map of subnet, info pairs
+     */
+    @Override
+    public ResponseEntity<APIStatus> getAllDevices() {
+        ZoneView all = zoneView;
+        if (all == null) return notLoaded();
 
+        List<SubnetSchema> output = new ArrayList<>(all.size());
+        for (int id = all.first(); id != ZoneView.NOT_FOUND; id = all.next(id)) {
+            output = addSS(output, all.getSubnet(id), all.getCIDR(id),
+                    all.getService(id), all.getOldZone(id), all.getNewZone(id));
+        }
+        Map<String,Object> response = new HashMap<>();
+        response.put("response",output);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, "All subnets", response));
 
-        //to rejoin abbreviated chunks into string (with trailing .)
-        String fewerOctetsStr = "";
-        for (String chunk: fewerOctets) fewerOctetsStr += chunk + '.';
+    }
 
 
-        //develop HashMap of <subnets, subnetInfo> that start with fewerOctetsStr
-        Map<String, List> matches = new HashMap<String,List>();
-        Iterator zoneInfoIter = zoneInfo.entrySet().iterator();
-        while (zoneInfoIter.hasNext()){
-            Map.Entry current = (Map.Entry)zoneInfoIter.next();
-            if (current.getKey().toString().startsWith(fewerOctetsStr)){
-                matches.put(current.getKey().toString(),(List)current.getValue());
+    /**
+     * streamDevices streams the subnets of the current snapshot as NDJSON, one SubnetSchema object per line,
+     * written straight from the snapshot without building a list. A page holds at most limit subnets; when
+     * there are more, the X-Next-Cursor header is the cursor of the next page. Every page carries the ETag of
+     * the snapshot, and a matching If-None-Match is answered with 304 and no body.
+     * @param cursor X-Next-Cursor of the previous page, or null for the first page
+     * @param limit page size up to devicesMaxPageSize, or 0 for devicesPageSize
+     * @param service only subnets of this service, or null for all
+     * @param oldZone only subnets in this old zone, or null for all
+     * @param newZone only subnets in this new zone, or null for all
+     * @param ifNoneMatch If-None-Match request header, or null
+     * @return the page; 304 if the snapshot is unchanged, 410 if the cursor is from another snapshot (an older
+     * version, or any version of an earlier epoch)
+     */
+    public ResponseEntity<StreamingResponseBody> streamDevices(String cursor, int limit, String service, String oldZone, String newZone, String ifNoneMatch) {
+        ZoneView all = zoneView;
+        if (all == null) return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+
+        HttpHeaders headers = new HttpHeaders();
+        //versions restart with every epoch, so the ETag and cursors carry both
+        String snapshotVersion = Long.toHexString(all.getEpoch()) + "-" + all.getVersion();
+        String eTag = "\"" + snapshotVersion + "\"";
+        headers.setETag(eTag);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(eTag) || ifNoneMatch.trim().equals("*"))) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        if (limit == 0) limit = devicesPageSize;
+        if (limit < 0 || limit > devicesMaxPageSize) return new ResponseEntity<>(headers, HttpStatus.BAD_REQUEST);
+
+        //cursor is <epoch>-<view version>.<id of the first subnet of the page>
+        int start = all.first();
+        if (cursor != null && !cursor.isEmpty()) {
+            int dot = cursor.lastIndexOf('.');
+            int dash = cursor.indexOf('-');
+            int id;
+            try {
+                if (dash <= 0 || dot < dash) throw new NumberFormatException();
+                Long.parseLong(cursor.substring(0, dash), 16);
+                Long.parseLong(cursor.substring(dash + 1, dot));
+                id = Integer.parseInt(cursor.substring(dot + 1));
+            } catch (NumberFormatException e) {
+                return new ResponseEntity<>(headers, HttpStatus.BAD_REQUEST);
             }
+            if (id < 0) return new ResponseEntity<>(headers, HttpStatus.BAD_REQUEST);
+            if (!cursor.substring(0, dot).equals(snapshotVersion)) return new ResponseEntity<>(headers, HttpStatus.GONE);
+            start = all.next(id - 1);
         }
 
+        //find where the page ends first, the cursor has to go out with the headers
+        int end = start;
+        for (int matched = 0; end != ZoneView.NOT_FOUND && matched < limit; end = all.next(end)) {
+            if (matches(all, end, service, oldZone, newZone)) matched++;
+        }
+        while (end != ZoneView.NOT_FOUND && !matches(all, end, service, oldZone, newZone)) end = all.next(end);
+        if (end != ZoneView.NOT_FOUND) headers.set("X-Next-Cursor", snapshotVersion + "." + end);
+        headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+
+        final int from = start;
+        final int to = end;
+        StreamingResponseBody body = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+            StringBuilder line = new StringBuilder(160);
+            for (int id = from; id != to; id = all.next(id)) {
+                if (!matches(all, id, service, oldZone, newZone)) continue;
+                line.setLength(0);
+                line.append("{\"subnet\":");
+                appendJson(line, all.getSubnet(id));
+                line.append(",\"cidr\":");
+                appendJson(line, all.getCIDR(id));
+                line.append(",\"service\":");
+                appendJson(line, all.getService(id));
+                line.append(",\"zoneOld\":");
+                appendJson(line, all.getOldZone(id));
+                line.append(",\"zoneNew\":");
+                appendJson(line, all.getNewZone(id));
+                line.append("}\n");
+                writer.append(line);
+            }
+            writer.flush();
+        };
+        if (log.isDebugEnabled()) log.debug("Streaming subnets from " + from + (to == ZoneView.NOT_FOUND ? " to the end" : " to " + to));
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
 
-        //test each match to see if the subnet/CIDR/IP combination all mesh
-        List<String> best = new ArrayList<>();
-        Iterator matchesIter = matches.entrySet().iterator();
-        while(matchesIter.hasNext()){
-            Map.Entry current = (Map.Entry) matchesIter.next();
-
-            String subnet = current.getKey().toString();
-            List<String> val = (List<String>)current.getValue(); // CIDR, service, oldZone, newZone
-            int CIDR = Integer.parseInt(val.get(0));
+    /**
+     * matches checks a subnet against the streamDevices filters
+     * @return true if every non-null filter equals the subnet's value
+     */
+    private static boolean matches(ZoneView all, int id, String service, String oldZone, String newZone) {
+        return (service == null || service.equals(all.getService(id)))
+                && (oldZone == null || oldZone.equals(all.getOldZone(id)))
+                && (newZone == null || newZone.equals(all.getNewZone(id)));
+    }
 
-            String service = val.get(1);
-            String oldZone = val.get(2);
-            String newZone = val.get(3);
+    /**
+     * appendJson appends value as a JSON string, or null
+     * @param json output
+     * @param value String to quote and escape
+     */
+    private static void appendJson(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
 
-            //determine the octet to check based on the CIDR
-            int octetToCheck = -1; //negative int to detect error
-            if(CIDR <=8){
-                octetToCheck = 0;
-            } else if (CIDR <=16){
-                octetToCheck = 1;
-            } else if (CIDR <=24){
-                octetToCheck = 2;
-            } else {
-                octetToCheck = 3;
+    /**
+     * getSubnetsBy returns every subnet with the given service and/or zones, e.g. oldZone=RED and newZone=Z2,
+     * from the reverse indexes of the current snapshot
+     * @param service service, or null for any
+     * @param oldZone oldZone, or null for any
+     * @param newZone newZone, or null for any
+     * @param countOnly true to return only the count
+     * @return "count" and, unless countOnly, "response" with the matching subnets
+     */
+    public ResponseEntity<APIStatus> getSubnetsBy(String service, String oldZone, String newZone, boolean countOnly) {
+        Map<String,Object> response = new HashMap<>();
+        if (service == null && oldZone == null && newZone == null) {
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "No service or zone given", response));
+        }
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return notLoaded();
+
+        int[] ids = zoneInfo.select(service, oldZone, newZone);
+        response.put("count", ids.length);
+        if (!countOnly) {
+            List<SubnetSchema> output = new ArrayList<>(ids.length);
+            for (int id : ids) {
+                output = addSS(output, zoneInfo.getSubnet(id), zoneInfo.getCIDR(id),
+                        zoneInfo.getService(id), zoneInfo.getOldZone(id), zoneInfo.getNewZone(id));
             }
+            response.put("response", output);
+        }
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, ids.length + " subnets found", response));
+    }
 
-            List<String> output1 = parse(IP,octetToCheck);
-            List<String> output2 = parse(subnet,octetToCheck);
+    /**
+     * getContainedSubnets lists the subnets inside subnet/CIDR, itself included
+     * @param subnet network of the queried prefix, IPv4 or IPv6
+     * @param CIDR String
+     * @return "response" with the subnets in address order
+     */
+    public ResponseEntity<APIStatus> getContainedSubnets(String subnet, String CIDR) {
+        return prefixQuery(subnet, CIDR, CONTAINED);
+    }
 
-            String ipSplit = output1.get(0);
-            String decToBin = output1.get(1);
+    /**
+     * getCoveringSubnets lists the subnets that contain subnet/CIDR, itself included
+     * @param subnet network of the queried prefix, IPv4 or IPv6
+     * @param CIDR String
+     * @return "response" with the subnets, shortest CIDR first
+     */
+    public ResponseEntity<APIStatus> getCoveringSubnets(String subnet, String CIDR) {
+        return prefixQuery(subnet, CIDR, COVERING);
+    }
 
-            String currentSplit = output2.get(0);
-            String currentVal = output2.get(1);
+    /**
+     * getCoverageGaps lists the parts of subnet/CIDR that no subnet covers, i.e. addresses without a zone
+     * @param subnet network of the queried prefix, IPv4 only
+     * @param CIDR String
+     * @return "response" with the gaps as "network/CIDR" blocks in address order
+     */
+    public ResponseEntity<APIStatus> getCoverageGaps(String subnet, String CIDR) {
+        return prefixQuery(subnet, CIDR, GAPS);
+    }
 
-            if (Objects.equals(ipSplit, currentSplit)){ //if IP and CURRENT match up to the octet in question
+    /**
+     * prefixQuery answers getContainedSubnets, getCoveringSubnets and getCoverageGaps from the sorted snapshot,
+     * in time proportional to the output
+     * @param subnet network of the queried prefix; host bits are ignored
+     * @param CIDR String
+     * @param query CONTAINED, COVERING or GAPS
+     * @return ResponseEntity<APIStatus> with the result
+     */
+    private ResponseEntity<APIStatus> prefixQuery(String subnet, String CIDR, int query) {
+        Map<String,Object> response = new HashMap<>();
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return notLoaded();
+
+        long network = IPv4Address.parse(subnet);
+        long[] network6 = new long[2];
+        boolean v6 = network == IPv4Address.EMPTY && subnet != null && subnet.indexOf(':') >= 0;
+        if (v6 ? !IPv6Address.parse(subnet, network6) : network < 0) {
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid subnet", response));
+        }
+        int prefix = ZoneSnapshot.parsePrefix(CIDR, v6 ? 128 : 32);
+        if (prefix < 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid CIDR", response));
+
+        if (query == GAPS) {
+            if (v6) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Gaps are only reported for IPv4", response));
+            long[] gaps = zoneInfo.gaps((int) network & IPv4Address.mask(prefix), prefix);
+            List<String> blocks = new ArrayList<>();
+            for (int i = 0; i < gaps.length; i += 2) blocks.addAll(IPv4Address.blocks(gaps[i], gaps[i + 1]));
+            response.put("response", blocks);
+            return buildResponseEntity(new APIStatus(HttpStatus.OK, gaps.length / 2 + " gaps found", response));
+        }
 
-                if (decToBin.charAt(decToBin.length()-1)=='.'){ //remove . if it's at the end of decToBin (IP) so that it can be parsed
-                    decToBin = decToBin.substring(0,decToBin.length()-1);
-                }
+        int[] ids;
+        if (v6) {
+            long high = network6[0] & IPv6Address.maskHigh(prefix);
+            long low = network6[1] & IPv6Address.maskLow(prefix);
+            ids = query == CONTAINED ? zoneInfo.contained6(high, low, prefix) : zoneInfo.covering6(high, low, prefix);
+        } else {
+            int masked = (int) network & IPv4Address.mask(prefix);
+            ids = query == CONTAINED ? zoneInfo.contained(masked, prefix) : zoneInfo.covering(masked, prefix);
+        }
+        List<SubnetSchema> output = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            output = addSS(output, zoneInfo.getSubnet(id), zoneInfo.getCIDR(id),
+                    zoneInfo.getService(id), zoneInfo.getOldZone(id), zoneInfo.getNewZone(id));
+        }
+        response.put("response", output);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, ids.length + " subnets found", response));
+    }
 
-                int dectoBinInt = Integer.parseInt(decToBin); //convert decToBin (IP) to int
+    /**
+     * getSubnet
+     * @param subnet subnet query and get info about
+     * @return information about queried subnet, one entry per CIDR defined on it
+     */
+    @Override
+    public ResponseEntity<APIStatus> getSubnet(String subnet) {
 
-                String binOctet = toOctet(Integer.toBinaryString(dectoBinInt)); // convert decToBin (IP) to binary bit string octet
 
-                int index = (CIDR%8)-1; //determine index to derive value from binOctet
+        ZoneView zoneInfo = zoneView;
+        int[] ids = new int[0];
+        List<SubnetSchema> output = new ArrayList<>();
+        Map<String,Object> response = new HashMap<>();
 
+        if (zoneInfo == null) return notLoaded();
+        long network = IPv4Address.parse(subnet);
+        long[] network6 = new long[2];
+        if (network >= 0) ids = zoneInfo.findAll((int) network);
+        else if (subnet != null && subnet.indexOf(':') >= 0 && IPv6Address.parse(subnet, network6)) ids = zoneInfo.findAll6(network6[0], network6[1]);
+        if (ids.length == 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Subnet not found", response));
 
-                if (currentVal.charAt(currentVal.length()-1)=='.'){//remove . if it's at the end of currentVal (CURRENT) so that it can be parsed
-                    currentVal = currentVal.substring(0,currentVal.length()-1);
-                }
-                int currentValInt = Integer.parseInt(currentVal); //convert currentValInt (CURRENT) to int
-                int octetsVal = toValue(index, binOctet); //get value to compare octetsVal (IP)
-
-                if (currentValInt == octetsVal){ // CURRENT v IP
-                    if (best.isEmpty()){
-                        best = updateBest(best,subnet,Integer.toString(CIDR),service,oldZone,newZone);
-                    } else{
-                        int bestCIDR = Integer.parseInt(best.get(1));
-                        if (CIDR>bestCIDR){
-                            best = updateBest(best,subnet,Integer.toString(CIDR),service, oldZone, newZone);
-                        }
-                    }
-                }
-            }
+        for (int id : ids) {
+            output = addSS(output,zoneInfo.getSubnet(id),zoneInfo.getCIDR(id),
+                    zoneInfo.getService(id),zoneInfo.getOldZone(id),zoneInfo.getNewZone(id));
         }
-        return best;
+        response.put("response",output);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, "Subnet found", response));
     }
 
+
     /**
      * setZoneResult formats zoneResult such that a JSON can be returned with IP, subnet, CIDR, service, oldZone, newZone info
      * @param r the zoneResult object that will be returned
@@ -434,98 +909,298 @@ public class ZoneLookupServiceImpl implements ZoneLookupService{
 
 
     /**
-     * findZone attempts to find the zone corresponding to the user-inputted IP by removing octets
+     * findZone finds the most specific subnet housing the user-inputted IP using the snapshot's zone index
+     * @param zoneInfo the zone view to search
      * @param IP the user-inputted IP address
+     * @param address IP parsed by IPv4Address.parse
+     * @param start System.nanoTime() when the request arrived
      * @return r (a zoneResult) in JSON form containing IP, subnet, CIDR, service, oldZone, and newZone information
      */
-    private ZoneResult findZone (String IP){
-        Map<String, List> zoneInfo;
-        try {
-            zoneInfo = aggregateCache.get("key");
-        } catch (ExecutionException e){
-            return null;
-        }
+    private ZoneResult findZone (ZoneView zoneInfo, String IP, int address, long start){
+        int id = zoneInfo.lookup(address);
+        return toZoneResult(zoneInfo, IP, id, id != ZoneView.NOT_FOUND && zoneInfo.getNetwork(id) == address, start);
+    }
 
-        String affirmative = "A matching subnet was found for the supplied IP";
+    /**
+     * findZone6 finds the most specific IPv6 subnet housing the user-inputted IP
+     * @param zoneInfo the zone view to search
+     * @param IP the user-inputted IP address
+     * @param high high 64 bits of IP
+     * @param low low 64 bits of IP
+     * @param start System.nanoTime() when the request arrived
+     * @return r (a zoneResult) in JSON form containing IP, subnet, CIDR, service, oldZone, and newZone information
+     */
+    private ZoneResult findZone6 (ZoneView zoneInfo, String IP, long high, long low, long start){
+        int id = zoneInfo.lookup6(high, low);
+        return toZoneResult(zoneInfo, IP, id, id != ZoneView.NOT_FOUND && zoneInfo.getHigh(id) == high && zoneInfo.getLow(id) == low, start);
+    }
 
+    /**
+     * toZoneResult builds the zoneResult for a lookup and records its latency
+     * @param zoneInfo the zone view that was searched
+     * @param IP the user-inputted IP address
+     * @param id the matching subnet, or ZoneView.NOT_FOUND
+     * @param exact true if IP is the subnet itself
+     * @param start System.nanoTime() when the request arrived
+     * @return r (a zoneResult) in JSON form containing IP, subnet, CIDR, service, oldZone, and newZone information
+     */
+    private ZoneResult toZoneResult (ZoneView zoneInfo, String IP, int id, boolean exact, long start){
+        metrics.recordLookup(zoneInfo, id, start);
         ZoneResult r = new ZoneResult();
-        if (zoneInfo.containsKey(IP)){
-            log.info("IP was a complete match with a subnet");
-            return setZoneResult(r,IP,IP,zoneInfo.get(IP).get(0).toString(),zoneInfo.get(IP).get(1).toString(),zoneInfo.get(IP).get(2).toString(),zoneInfo.get(IP).get(3).toString());
+        if (id == ZoneView.NOT_FOUND){
+            log.debug("No matching subnet was found for the supplied IP");
+            return setZoneResult(r, IP, "UNKNOWN","UNKNOWN","UNKNOWN","UNKNOWN","UNKNOWN");
         }
 
-        List<String> threeOctetBest = performCheck(IP, zoneInfo, 3);
-        if (!threeOctetBest.isEmpty()){
-            log.info(affirmative);
-            return setZoneResult(r, IP, threeOctetBest.get(0),threeOctetBest.get(1),threeOctetBest.get(2),threeOctetBest.get(3),threeOctetBest.get(4));
-        }
+        if (exact) log.debug("IP was a complete match with a subnet");
+        else log.debug("A matching subnet was found for the supplied IP");
+        return setZoneResult(r, IP, zoneInfo.getSubnet(id), zoneInfo.getCIDR(id), zoneInfo.getService(id), zoneInfo.getOldZone(id), zoneInfo.getNewZone(id));
+    }
 
-        List<String> twoOctetBest = performCheck(IP, zoneInfo, 2);
-        if (!twoOctetBest.isEmpty()){
-            log.info(affirmative);
-            return setZoneResult(r, IP, twoOctetBest.get(0),twoOctetBest.get(1),twoOctetBest.get(2),twoOctetBest.get(3),twoOctetBest.get(4));
+    /**
+     * ZoneLookup is called when you have an IP and you want to return info pertaining to the subnet that houses IP
+     * @param IP String
+     * @return ResponseEntity<APIStatus> with subnet and corresponding info
+     */
+    @Override
+    public ResponseEntity<APIStatus>  ZoneLookup(String IP) {
+        long start = System.nanoTime();
+        log.debug("IP received, about to process for subnet zone information");
+        long address = IPv4Address.parse(IP);
+        long[] address6 = null;
+        if (address == IPv4Address.EMPTY && IP.indexOf(':') >= 0) {
+            address6 = new long[2];
+            if (!IPv6Address.parse(IP, address6)) address = IPv4Address.INVALID;
         }
-
-        List<String> oneOctetBest = performCheck(IP, zoneInfo, 1);
-        if (!oneOctetBest.isEmpty()){
-            log.info(affirmative);
-            return setZoneResult(r, IP, oneOctetBest.get(0),oneOctetBest.get(1),oneOctetBest.get(2),oneOctetBest.get(3),oneOctetBest.get(4));
+        if (address == IPv4Address.EMPTY && address6 == null) {
+            log.debug("No IP received");
+            metrics.recordInvalidLookup();
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Empty IP",new HashMap<>()));
+        }
+        if (address == IPv4Address.INVALID) {
+            log.debug("Invalid IP received");
+            metrics.recordInvalidLookup();
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid IP",new HashMap<>()));
         }
-        log.info("No matching subnet was found for the supplied IP");
-        return setZoneResult(r, IP, "UNKNOWN","UNKNOWN","UNKNOWN","UNKNOWN","UNKNOWN");
+        log.debug("Valid IP received");
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return notLoaded();
+        ZoneResult r;
+        if (address6 != null) {
+            r = findZone6(zoneInfo, IP, address6[0], address6[1], start);
+        } else {
+            //the cache is only used if it belongs to the view just read, so a swap can never mix snapshots
+            ZoneResultCache<HotResult> hot = hotIPs;
+            if (hot != null && hot.getView() != zoneInfo) hot = null;
+            HotResult cached = hot == null ? null : hot.get((int) address);
+            if (cached != null) {
+                hotIPHits.increment();
+                metrics.recordCachedLookup(start);
+                r = cached.toZoneResult(IP);
+            } else if (hot != null) {
+                hotIPMisses.increment();
+                int id = zoneInfo.lookup((int) address);
+                hot.put((int) address, new HotResult(zoneInfo, id));
+                r = toZoneResult(zoneInfo, IP, id, id != ZoneView.NOT_FOUND && zoneInfo.getNetwork(id) == (int) address, start);
+            } else {
+                r = findZone(zoneInfo, IP, (int) address, start);
+            }
+        }
+        //the response is built for every request; callers and filters may change it
+        Map<String,Object> response = new HashMap<>();
+        response.put("response",r);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, "Zone lookup complete",response));
+    }
 
+    /**
+     * HotResult is the subnet a hot IPv4 address resolved to, as the strings of its ZoneResult. It is immutable
+     * so one instance can serve every request for the address; each request still gets its own ZoneResult.
+     */
+    static final class HotResult {
+        final String subnet;
+        final String CIDR;
+        final String service;
+        final String oldZone;
+        final String newZone;
+
+        HotResult(ZoneView view, int id) {
+            boolean found = id != ZoneView.NOT_FOUND;
+            this.subnet = found ? view.getSubnet(id) : "UNKNOWN";
+            this.CIDR = found ? view.getCIDR(id) : "UNKNOWN";
+            this.service = found ? view.getService(id) : "UNKNOWN";
+            this.oldZone = found ? view.getOldZone(id) : "UNKNOWN";
+            this.newZone = found ? view.getNewZone(id) : "UNKNOWN";
+        }
 
+        ZoneResult toZoneResult(String IP) {
+            ZoneResult r = new ZoneResult();
+            r.setIP(IP);
+            r.setSubnet(subnet);
+            r.setCIDR(CIDR);
+            r.setService(service);
+            r.setOldZone(oldZone);
+            r.setNewZone(newZone);
+            return r;
+        }
     }
 
     /**
-     * validIP determines if an IP address is valid
-     * @param IP the IP address that needs to be checked
-     * @return trueIP String that removes all non digit nor . characters; returns blank if fewer than 3 .s
+     * ZoneLookupBatch resolves a batch of IPs against a single snapshot. Each distinct IPv4 address is looked up
+     * once, in parallel for large batches, and every matched subnet is returned once. IPv6 addresses are looked
+     * up as they come.
+     * @param IPs list of IP Strings
+     * @return ResponseEntity<APIStatus> with "subnets" (the matched subnets) and "results" (for each IP, in order,
+     * the index of its subnet in "subnets", BATCH_NO_MATCH or BATCH_INVALID_IP)
      */
-    private String validIP(String IP){
-        int dotCount = 0;
-        String trueIP = "";
-        for (int c=0;c<IP.length();c++){
-            char current = IP.charAt(c);
-            if(current=='.') dotCount++;
-            if(Character.isDigit(current) || current=='.') trueIP += current;
+    public ResponseEntity<APIStatus> ZoneLookupBatch(List<String> IPs) {
+        long start = System.nanoTime();
+        Map<String,Object> response = new HashMap<>();
+        if (IPs == null || IPs.isEmpty()) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Empty IP list", response));
+
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return notLoaded();
+        int n = IPs.size();
+        int[] ids = lookupAll(zoneInfo, IPs);
+
+        //number the matched subnets in snapshot order
+        int[] matched = Arrays.copyOf(ids, n);
+        Arrays.sort(matched);
+        int subnets = 0;
+        for (int entry : matched) {
+            if (entry >= 0 && (subnets == 0 || matched[subnets - 1] != entry)) matched[subnets++] = entry;
+        }
+        List<SubnetSchema> output = new ArrayList<>(subnets);
+        for (int i = 0; i < subnets; i++) {
+            int id = matched[i];
+            output = addSS(output, zoneInfo.getSubnet(id), zoneInfo.getCIDR(id),
+                    zoneInfo.getService(id), zoneInfo.getOldZone(id), zoneInfo.getNewZone(id));
+        }
 
+        int[] results = new int[n];
+        for (int i = 0; i < n; i++) {
+            int entry = ids[i];
+            results[i] = entry == BATCH_INVALID_IP ? BATCH_INVALID_IP
+                    : entry == ZoneView.NOT_FOUND ? BATCH_NO_MATCH : Arrays.binarySearch(matched, 0, subnets, entry);
         }
 
-        if (dotCount != 3) trueIP = "";
-        return trueIP;
+        response.put("subnets", output);
+        response.put("results", results);
+        //results are not logged; buildResponseEntity would log the whole batch
+        metrics.recordBatch(n, start);
+        log.debug("Zone batch lookup complete: {} IPs, {} subnets", n, subnets);
+        APIStatus apiStatus = new APIStatus(HttpStatus.OK, "Zone batch lookup complete", response);
+        return new ResponseEntity<>(apiStatus, apiStatus.getStatus());
     }
 
-    protected Pattern getIpPattern(){
-        if(ipPattern == null)
-            ipPattern = Pattern.compile(ipRegex);
-        return ipPattern;
+    /**
+     * lookupAll resolves IPs against one view. Each distinct IPv4 address is looked up once, in parallel for
+     * large batches; IPv6 addresses are looked up as they come.
+     * @param zoneInfo the zone view to search
+     * @param IPs list of IP Strings
+     * @return for each IP, in order, its subnet, ZoneView.NOT_FOUND or BATCH_INVALID_IP
+     */
+    private int[] lookupAll(ZoneView zoneInfo, List<String> IPs) {
+        //parse every IP, then sort and de-duplicate the valid ones
+        int n = IPs.size();
+        long[] addresses = new long[n];
+        int[] distinct = new int[n];
+        int valid = 0;
+        for (int i = 0; i < n; i++) {
+            addresses[i] = IPv4Address.parse(IPs.get(i));
+            if (addresses[i] >= 0) distinct[valid++] = (int) addresses[i];
+        }
+        Arrays.sort(distinct, 0, valid);
+        int unique = 0;
+        for (int i = 0; i < valid; i++) {
+            if (unique == 0 || distinct[unique - 1] != distinct[i]) distinct[unique++] = distinct[i];
+        }
+
+        //resolve each distinct IP once
+        int[] entries = new int[unique];
+        IntStream range = IntStream.range(0, unique);
+        if (unique >= batchParallelThreshold) range = range.parallel();
+        range.forEach(i -> entries[i] = zoneInfo.lookup(distinct[i]));
+
+        //subnet of each IP, IPv6 addresses are resolved here
+        int[] ids = new int[n];
+        long[] address6 = new long[2];
+        for (int i = 0; i < n; i++) {
+            String IP = IPs.get(i);
+            if (addresses[i] >= 0) ids[i] = entries[Arrays.binarySearch(distinct, 0, unique, (int) addresses[i])];
+            else if (addresses[i] == IPv4Address.EMPTY && IP != null && IP.indexOf(':') >= 0 && IPv6Address.parse(IP, address6)) ids[i] = zoneInfo.lookup6(address6[0], address6[1]);
+            else ids[i] = BATCH_INVALID_IP;
+        }
+        return ids;
     }
 
     /**
-     * ZoneLookup is called when you have an IP and you want to return info pertaining to the subnet that houses IP
+     * ZoneLookupCompact is ZoneLookup in the compact format of ZoneResultCodec, for callers sending
+     * ZoneResultCodec.MEDIA_TYPE in Accept: names are ids into getCompactNames, and nothing is logged per request
      * @param IP String
-     * @return ResponseEntity<APIStatus> with subnet and corresponding info
+     * @return one encoded result; 400 (with an INVALID_IP result) for an empty or invalid IP
      */
-    @Override
-    public ResponseEntity<APIStatus>  ZoneLookup(String IP) {
-        log.info("IP received, about to process for subnet zone information");
-        String trueIP = validIP(IP);
-        Map<String,Object> response = new HashMap<>();
-        if (trueIP.isEmpty()) {
-            log.info("No IP received");
-            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Empty IP",response));
+    public ResponseEntity<byte[]> ZoneLookupCompact(String IP) {
+        long start = System.nanoTime();
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        long address = IPv4Address.parse(IP);
+        long[] address6 = new long[2];
+        int id;
+        if (address >= 0) id = zoneInfo.lookup((int) address);
+        else if (address == IPv4Address.EMPTY && IP != null && IP.indexOf(':') >= 0 && IPv6Address.parse(IP, address6)) id = zoneInfo.lookup6(address6[0], address6[1]);
+        else {
+            metrics.recordInvalidLookup();
+            return compact(zoneInfo, new int[] {ZoneResultCodec.INVALID}, HttpStatus.BAD_REQUEST);
         }
-        Matcher matcher = getIpPattern().matcher(IP);
-        if (matcher.matches()){
-            log.info("Valid IP received");
-            response.put("response",findZone(trueIP));
-            return  buildResponseEntity(new APIStatus(HttpStatus.OK, "Zone lookup complete",response));
+        metrics.recordLookup(zoneInfo, id, start);
+        return compact(zoneInfo, new int[] {id}, HttpStatus.OK);
+    }
+
+    /**
+     * ZoneLookupBatchCompact is ZoneLookupBatch in the compact format of ZoneResultCodec
+     * @param IPs list of IP Strings
+     * @return one encoded result per IP, in order
+     */
+    public ResponseEntity<byte[]> ZoneLookupBatchCompact(List<String> IPs) {
+        long start = System.nanoTime();
+        if (IPs == null || IPs.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        int[] ids = lookupAll(zoneInfo, IPs);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == BATCH_INVALID_IP) ids[i] = ZoneResultCodec.INVALID;
         }
-        else{
-            log.info("Invalid IP received");
-            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid IP",response));
+        metrics.recordBatch(ids.length, start);
+        return compact(zoneInfo, ids, HttpStatus.OK);
+    }
+
+    /**
+     * getCompactNames returns the name table that the service and zone ids of compact results refer to. The
+     * table is encoded once per snapshot; callers keep it until a result carries a different version.
+     * @param ifNoneMatch If-None-Match header, or null
+     * @return the encoded table with its ETag, or 304 if ifNoneMatch is still current
+     */
+    public ResponseEntity<byte[]> getCompactNames(String ifNoneMatch) {
+        ZoneView zoneInfo = zoneView;
+        if (zoneInfo == null) return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        String eTag = "\"" + Long.toHexString(zoneInfo.getEpoch()) + "-" + zoneInfo.getVersion() + "\"";
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(eTag);
+        if (eTag.equals(ifNoneMatch)) return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+
+        AbstractMap.SimpleImmutableEntry<ZoneView, byte[]> names = compactNames;
+        if (names == null || names.getKey() != zoneInfo) {
+            names = new AbstractMap.SimpleImmutableEntry<>(zoneInfo, ZoneResultCodec.encodeNames(zoneInfo));
+            compactNames = names;
         }
+        headers.setContentType(COMPACT);
+        return new ResponseEntity<>(names.getValue(), headers, HttpStatus.OK);
+    }
+
+    private ResponseEntity<byte[]> compact(ZoneView zoneInfo, int[] ids, HttpStatus status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(COMPACT);
+        return new ResponseEntity<>(ZoneResultCodec.encode(zoneInfo, ids), headers, status);
     }
 
 
@@ -538,77 +1213,305 @@ public class ZoneLookupServiceImpl implements ZoneLookupService{
      */
     @Override
     public ResponseEntity<APIStatus> IPinSubnet (String IP, String subnet, String CIDR){
-        Matcher IPmatcher = getIpPattern().matcher(IP);
-        Matcher subnetmatcher = getIpPattern().matcher(subnet);
+        if (IP.indexOf(':') >= 0 || subnet.indexOf(':') >= 0) return IPinSubnet6(IP, subnet, CIDR);
         Map<String,Object> response = new HashMap<>();
-        if (!IPmatcher.matches()) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid IP",response));
-        if (!subnetmatcher.matches()) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid subnet",response));
-
-        if (Objects.equals(IP, subnet)) {
-            log.info("IP is the subnet");
+        long address = IPv4Address.parse(IP);
+        long network = IPv4Address.parse(subnet);
+        if (address < 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid IP",response));
+        if (network < 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid subnet",response));
+        int prefix = ZoneSnapshot.parsePrefix(CIDR, 32);
+        if (prefix < 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid CIDR",response));
+
+        if (address == network) {
+            log.debug("IP is the subnet");
             response.put("response",true);
             return buildResponseEntity(new APIStatus(HttpStatus.OK, "IP is the Subnet",response));
         }
 
-        Map<String, List> zoneInfo = new HashMap<String, List>(); //only entry in zoneInfo is the subnet provided by user
-        List<String> subnetList = new ArrayList<>();
-        subnetList.add(CIDR);
-        subnetList.add("SERVICE");
-        subnetList.add("OLD ZONE");
-        subnetList.add("NEW ZONE");
-        zoneInfo.put(subnet,subnetList);
-
-        String affirmative = "IP is in subnet";
-
-        List<String> threeOctetBest = performCheck(IP, zoneInfo, 3);
-        if (!threeOctetBest.isEmpty()) {
-            log.info(affirmative);
+        int mask = IPv4Address.mask(prefix);
+        if (((int) address & mask) == ((int) network & mask)) {
+            log.debug("IP is in subnet");
             response.put("response",true);
-            return buildResponseEntity(new APIStatus(HttpStatus.OK, affirmative,response));
+            return buildResponseEntity(new APIStatus(HttpStatus.OK, "IP is in subnet",response));
         }
+        String not = "IP is NOT in provided subnet";
+        log.debug(not);
+        response.put("response",false);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, not,response));
+    }
 
-        List<String> twoOctetBest = performCheck(IP, zoneInfo, 2);
-        if (!twoOctetBest.isEmpty()) {
-            log.info(affirmative);
+    /**
+     * IPinSubnet6 is IPinSubnet for IPv6 addresses, comparing the masked 128 bit values
+     * @param IP String
+     * @param subnet String
+     * @param CIDR String
+     * @return true or false embedded in ResponseEntity<APIStatus>
+     */
+    private ResponseEntity<APIStatus> IPinSubnet6 (String IP, String subnet, String CIDR){
+        Map<String,Object> response = new HashMap<>();
+        long[] address = new long[2];
+        long[] network = new long[2];
+        if (!IPv6Address.parse(IP, address)) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid IP",response));
+        if (!IPv6Address.parse(subnet, network)) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid subnet",response));
+        int prefix = ZoneSnapshot.parsePrefix(CIDR, 128);
+        if (prefix < 0) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid CIDR",response));
+
+        if (address[0] == network[0] && address[1] == network[1]) {
+            log.debug("IP is the subnet");
             response.put("response",true);
-            return buildResponseEntity(new APIStatus(HttpStatus.OK, affirmative,response));
+            return buildResponseEntity(new APIStatus(HttpStatus.OK, "IP is the Subnet",response));
         }
-
-        List<String> oneOctetBest = performCheck(IP, zoneInfo, 1);
-        if (!oneOctetBest.isEmpty()) {
-            log.info(affirmative);
+        long maskHigh = IPv6Address.maskHigh(prefix);
+        long maskLow = IPv6Address.maskLow(prefix);
+        if ((address[0] & maskHigh) == (network[0] & maskHigh) && (address[1] & maskLow) == (network[1] & maskLow)) {
+            log.debug("IP is in subnet");
             response.put("response",true);
-            return buildResponseEntity(new APIStatus(HttpStatus.OK, affirmative,response));
+            return buildResponseEntity(new APIStatus(HttpStatus.OK, "IP is in subnet",response));
         }
         String not = "IP is NOT in provided subnet";
-        log.info(not);
+        log.debug(not);
         response.put("response",false);
         return buildResponseEntity(new APIStatus(HttpStatus.OK, not,response));
     }
 
+    /*
+     * Non-blocking variants of the lookups, for controllers returning CompletableFuture so the servlet thread is
+     * released at once. The lookups only read the published zoneView and never wait for the database: before the
+     * first load they answer 503, during a refresh they answer from the previous snapshot. Running them on
+     * lookupExecutor keeps them off the servlet pool, which the repository-backed endpoints can exhaust.
+     */
+
+    public CompletableFuture<ResponseEntity<APIStatus>> ZoneLookupAsync(String IP) {
+        return CompletableFuture.supplyAsync(() -> ZoneLookup(IP), lookupExecutor);
+    }
+
+    public CompletableFuture<ResponseEntity<APIStatus>> ZoneLookupBatchAsync(List<String> IPs) {
+        return CompletableFuture.supplyAsync(() -> ZoneLookupBatch(IPs), lookupExecutor);
+    }
+
+    public CompletableFuture<ResponseEntity<APIStatus>> getSubnetAsync(String subnet) {
+        return CompletableFuture.supplyAsync(() -> getSubnet(subnet), lookupExecutor);
+    }
+
+    public CompletableFuture<ResponseEntity<APIStatus>> IPinSubnetAsync(String IP, String subnet, String CIDR) {
+        return CompletableFuture.supplyAsync(() -> IPinSubnet(IP, subnet, CIDR), lookupExecutor);
+    }
+
     @Autowired
     private ExceptionIPsRepository exceptionIPsRepository;
 
     /**
-     * addException adds new exceptions to maintenance.ExceptionIPs
+     * addException adds new exceptions to maintenance.ExceptionIPs. A subnet/CIDR that is already an exception
+     * is not added again: with the same zones it is reported as existing, with other zones it is a conflict.
      * @param subnet String
      * @param CIDR String
      * @param oldZone String
      * @param newZone String
-     * @return returns String stating that the exception has been added
+     * @return returns String stating that the exception has been added; 409 if it conflicts with an existing one
      */
     @Override
     @Transactional
     public ResponseEntity<APIStatus> addException(String subnet, String CIDR, String oldZone, String newZone) {
         Map<String,Object> response = new HashMap<>();
-        ExceptionIPsEntity newException = new ExceptionIPsEntity(subnet,CIDR,"EXCEPTION",oldZone,newZone);
-        exceptionRepository.save(newException);
+        ZoneSnapshot.Builder builder = new ZoneSnapshot.Builder();
+        if (!builder.add(subnet, CIDR, "EXCEPTION", oldZone, newZone)) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "Invalid subnet", response));
+        ZoneSnapshot entry = builder.build();
+        List<String> keys = Collections.singletonList(entry.getSubnet(0) + "/" + entry.getCIDR(0));
+        synchronized (exceptionsLock) {
+            String[] zones = storedZones(entry, 0);
+            if (zones != null) {
+                boolean same = Objects.equals(oldZone, zones[0]) && Objects.equals(newZone, zones[1]);
+                response.put("response", keys.get(0) + " (" + zones[0] + ", " + zones[1] + ")");
+                return buildResponseEntity(same ? new APIStatus(HttpStatus.OK, "Exception already exists", response)
+                        : new APIStatus(HttpStatus.CONFLICT, "Subnet is already an exception with other zones", response));
+            }
+            unsavedExceptions.put(keys.get(0), new String[] {oldZone, newZone});
+        }
+        final ExceptionIPsEntity newException = new ExceptionIPsEntity(subnet,CIDR,"EXCEPTION",oldZone,newZone);
+        try {
+            exceptionRepository.save(newException);
+        } catch (RuntimeException e) {
+            releaseExceptions(keys);
+            throw e;
+        }
+        //make the exception visible to lookups on this node once it is committed (on followers, once pulled)
+        afterCommit(() -> publishExceptions(zoneInfoExceptions -> addExceptionToZoneInfo(zoneInfoExceptions, newException)),
+                () -> releaseExceptions(keys));
         String responseStr = subnet+"/"+CIDR+" ("+oldZone+", "+newZone+")"+" was added to maintenance.ExceptionIPs";
         log.info(responseStr);
         response.put("response",newException);
         return buildResponseEntity(new APIStatus(HttpStatus.OK, "Exception Added ", response));
     }
 
+    /**
+     * addExceptions adds many exceptions to maintenance.ExceptionIPs with batched inserts and makes them
+     * visible with a single republish (on followers, with the next pull from the leader). The whole list is
+     * rejected if any entry is invalid. Entries are de-duplicated by subnet/CIDR (the last one wins), and those
+     * already in ExceptionIPs with the same zones are skipped. The whole list is also rejected if a subnet/CIDR
+     * is already an exception with other zones, since a second row would make its zones ambiguous. Subnets are
+     * stored masked to their CIDR.
+     *
+     * The check covers exceptionsSnapshot and the adds in progress on this node. Rows written by other nodes are
+     * only seen once this node refreshes or pulls them, so across nodes only a unique constraint on subnet and
+     * CIDR in ExceptionIPs rules out a second row.
+     * @param exceptions subnet, CIDR, zoneOld and zoneNew of each exception; service is always EXCEPTION
+     * @return "added" and "skipped" counts, "invalid" with the index of each rejected entry, or 409 with the
+     * "conflicts" already in ExceptionIPs
+     */
+    @Transactional
+    public ResponseEntity<APIStatus> addExceptions(List<SubnetSchema> exceptions) {
+        Map<String,Object> response = new HashMap<>();
+        if (exceptions == null || exceptions.isEmpty()) return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, "No exceptions given", response));
+
+        //the builder parses, masks and de-duplicates the input
+        ZoneSnapshot.Builder builder = new ZoneSnapshot.Builder();
+        List<Integer> invalid = new ArrayList<>();
+        for (int i = 0; i < exceptions.size(); i++) {
+            SubnetSchema e = exceptions.get(i);
+            if (e == null || isBlank(e.getZoneOld()) || isBlank(e.getZoneNew())
+                    || !builder.add(e.getSubnet(), e.getCIDR(), "EXCEPTION", e.getZoneOld(), e.getZoneNew())) {
+                invalid.add(i);
+            }
+        }
+        if (!invalid.isEmpty()) {
+            response.put("invalid", invalid);
+            return buildResponseEntity(new APIStatus(HttpStatus.BAD_REQUEST, invalid.size() + " invalid exceptions, nothing was added", response));
+        }
+        ZoneSnapshot batch = builder.build();
+
+        List<ExceptionIPsEntity> rows = new ArrayList<>(batch.size());
+        int[] added = new int[batch.size()];
+        List<String> keys = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+        //checked and reserved under the lock, so two adds on this node cannot both pass for the same subnet/CIDR
+        synchronized (exceptionsLock) {
+            for (int id = 0; id < batch.size(); id++) {
+                String key = batch.getSubnet(id) + "/" + batch.getCIDR(id);
+                String[] zones = storedZones(batch, id);
+                if (zones != null) {
+                    if (!batch.getOldZone(id).equals(zones[0]) || !batch.getNewZone(id).equals(zones[1])) {
+                        conflicts.add(key + " (" + zones[0] + ", " + zones[1] + ")");
+                    }
+                    continue;
+                }
+                added[rows.size()] = id;
+                keys.add(key);
+                rows.add(new ExceptionIPsEntity(batch.getSubnet(id), batch.getCIDR(id), "EXCEPTION", batch.getOldZone(id), batch.getNewZone(id)));
+            }
+            if (!conflicts.isEmpty()) {
+                response.put("conflicts", conflicts);
+                return buildResponseEntity(new APIStatus(HttpStatus.CONFLICT, conflicts.size() + " subnets are already exceptions with other zones, nothing was added", response));
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                unsavedExceptions.put(keys.get(i), new String[] {batch.getOldZone(added[i]), batch.getNewZone(added[i])});
+            }
+        }
+        try {
+            //through the entity mapping, so table, columns and id generation are the ones ExceptionIPsEntity declares
+            for (int i = 0; i < rows.size(); i++) {
+                entityManager.persist(rows.get(i));
+                if ((i + 1) % exceptionsInsertBatchSize == 0) {
+                    entityManager.flush();
+                    entityManager.clear();
+                }
+            }
+            entityManager.flush();
+        } catch (RuntimeException e) {
+            releaseExceptions(keys);
+            throw e;
+        }
+
+        int count = rows.size();
+        if (count > 0) {
+            afterCommit(() -> publishExceptions(zoneInfoExceptions -> {
+                for (int i = 0; i < count; i++) zoneInfoExceptions.add(batch, added[i]);
+            }), () -> releaseExceptions(keys));
+        }
+        log.info(count + " exceptions were added to maintenance.ExceptionIPs, " + (exceptions.size() - count) + " duplicates skipped");
+        response.put("added", count);
+        response.put("skipped", exceptions.size() - count);
+        return buildResponseEntity(new APIStatus(HttpStatus.OK, "Exceptions Added", response));
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * storedZones finds the exception stored, or being saved on this node, for the subnet/CIDR of an entry;
+     * callers hold exceptionsLock
+     * @param entries snapshot holding the entry
+     * @param id the entry
+     * @return oldZone and newZone of that exception, or null if there is none
+     */
+    private String[] storedZones(ZoneSnapshot entries, int id) {
+        String[] unsaved = unsavedExceptions.get(entries.getSubnet(id) + "/" + entries.getCIDR(id));
+        if (unsaved != null) return unsaved;
+        ZoneSnapshot current = exceptionsSnapshot;
+        int existing = current == null ? ZoneSnapshot.NOT_FOUND : entries.isIPv6(id)
+                ? current.find6(entries.getHigh(id), entries.getLow(id), entries.getPrefix(id))
+                : current.find(entries.getNetwork(id), entries.getPrefix(id));
+        return existing == ZoneSnapshot.NOT_FOUND ? null : new String[] {current.getOldZone(existing), current.getNewZone(existing)};
+    }
+
+    /**
+     * releaseExceptions drops reservations made by addException(s) once their transaction has completed
+     * @param keys subnet/CIDR of each reserved exception
+     */
+    private void releaseExceptions(List<String> keys) {
+        synchronized (exceptionsLock) {
+            for (String key : keys) unsavedExceptions.remove(key);
+        }
+    }
+
+    /**
+     * afterCommit runs task once the current transaction commits, or now if there is none, and completion once
+     * the transaction has committed or rolled back
+     * @param task work that must only see committed data
+     * @param completion cleanup that runs either way, after task
+     */
+    private void afterCommit(Runnable task, Runnable completion) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    completion.run();
+                }
+            });
+        } else {
+            try {
+                task.run();
+            } finally {
+                completion.run();
+            }
+        }
+    }
+
+    /**
+     * publishExceptions copies the live exceptions snapshot with new exceptions added and swaps it, and a new
+     * zone view, in so lookups see them without waiting for the next refresh. Followers publish nothing: their
+     * views are numbered by the leader, which picks the exceptions up on its next refresh and distributes them.
+     * @param additions adds the exceptions that were saved to the copy
+     */
+    private void publishExceptions(Consumer<ZoneSnapshot.Builder> additions){
+        if ("follower".equals(distributionRole)) return;
+        synchronized (exceptionsLock) {
+            if (addedDuringLoad != null) addedDuringLoad.add(additions);
+            ZoneSnapshot current = exceptionsSnapshot;
+            if (current == null) return; //the first load will include them
+            ZoneSnapshot.Builder zoneInfoExceptions = new ZoneSnapshot.Builder();
+            for (int id = 0; id < current.size(); id++) zoneInfoExceptions.add(current, id);
+            additions.accept(zoneInfoExceptions);
+            publish(zoneMappingSnapshot, zoneInfoExceptions.build());
+        }
+        distributeSnapshots();
+    }
+
     /**
      * addSS adds a SubnetSchema to output list
      * @param output list to add SubnetSchema to
@@ -631,13 +1534,21 @@ public class ZoneLookupServiceImpl implements ZoneLookupService{
         return output;
     }
 
+    /**
+     * notLoaded is returned by lookups until the first snapshots have been built
+     * @return ResponseEntity<APIStatus> with SERVICE_UNAVAILABLE
+     */
+    private ResponseEntity<APIStatus> notLoaded() {
+        return buildResponseEntity(new APIStatus(HttpStatus.SERVICE_UNAVAILABLE, "Zone data is still loading", new HashMap<String,Object>()));
+    }
+
     /**
     * buildResponseEntity constructs an API response entity
     * @param apiStatus response apiStatus
     * @return ResponseEntity<APIStatus> constructed
     */
     private ResponseEntity<APIStatus> buildResponseEntity(APIStatus apiStatus) {
-        log.info(apiStatus.toString());
+        if (log.isDebugEnabled()) log.debug(apiStatus.toString());
         return new ResponseEntity<>(apiStatus, apiStatus.getStatus());
     }
 
@@ -0,0 +1,124 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.Arrays;
+
+/**
+ * ZoneRangeTable is the IPv4 part of a ZoneView flattened into non-overlapping address ranges, each mapped to
+ * the most specific visible subnet covering it (or NOT_FOUND). Overlaps between subnets, and between
+ * ZoneMapping and ExceptionIPs, are resolved once when the table is built, so a lookup is a single
+ * predecessor search with no per-prefix probing.
+ *
+ * Each range is one long, (start ^ MIN_VALUE) << 32 | id, so the start compares as a signed int and the id is
+ * read from the same slot. A directory on the top 16 address bits gives, per /16 block, the range containing
+ * the block's first address and the last range starting inside it. Most blocks hold no or a few boundaries,
+ * so the search after the directory read is empty or a few steps over one or two cache lines. (A plain or
+ * Eytzinger-ordered search over the whole table misses the cache on most levels once it reaches millions of
+ * ranges, and measured slower than the ZoneIndex probes there.)
+ *
+ * Building costs O(n) after the snapshots' own sort, and is repeated for every published view.
+ */
+final class ZoneRangeTable {
+    private static final int NOT_FOUND = ZoneView.NOT_FOUND;
+    private static final long ADDRESSES = 1L << 32;
+
+    private final long[] table;
+    private final int[] blocks;     // per /16 block: index of the last range starting at or before its first address
+
+    /**
+     * @param view view whose visible IPv4 subnets to flatten
+     */
+    ZoneRangeTable(ZoneView view) {
+        //sweep the subnets in (network, CIDR) order with the chain of subnets containing the current one
+        long[] ranges = new long[2 * view.size() + 1];
+        int[] chain = new int[33];
+        int depth = 0;
+        int count = 1;
+        ranges[0] = range(0, NOT_FOUND);
+        int base = view.getZoneMapping().size();
+        int mapping = view.first();
+        int exception = view.next(base - 1);
+        while (true) {
+            boolean mappingLeft = mapping != NOT_FOUND && mapping < base && !view.isIPv6(mapping);
+            boolean exceptionLeft = exception != NOT_FOUND && !view.isIPv6(exception);
+            if (!mappingLeft && !exceptionLeft) break;
+            int id;
+            if (mappingLeft && (!exceptionLeft || view.compare(mapping, exception) < 0)) {
+                id = mapping;
+                mapping = view.next(mapping);
+            } else {
+                id = exception;
+                exception = view.next(exception);
+            }
+            long start = view.getNetwork(id) & 0xFFFFFFFFL;
+            while (depth > 0 && end(view, chain[depth - 1]) < start) {
+                long after = end(view, chain[--depth]) + 1;
+                count = add(ranges, count, after, depth > 0 ? chain[depth - 1] : NOT_FOUND);
+            }
+            count = add(ranges, count, start, id);
+            chain[depth++] = id;
+        }
+        while (depth > 0) {
+            long after = end(view, chain[--depth]) + 1;
+            if (after < ADDRESSES) count = add(ranges, count, after, depth > 0 ? chain[depth - 1] : NOT_FOUND);
+        }
+
+        table = Arrays.copyOf(ranges, count);
+        blocks = new int[(1 << 16) + 1];
+        int i = 0;
+        for (int block = 0; block <= 1 << 16; block++) {
+            long first = (long) block << 16;
+            while (i + 1 < count && start(table[i + 1]) <= first) i++;
+            blocks[block] = i;
+        }
+    }
+
+    /**
+     * lookup finds the most specific visible subnet containing the address
+     * @param address IPv4 address as an int
+     * @return id in the view, or NOT_FOUND
+     */
+    int lookup(int address) {
+        long[] t = table;
+        int block = address >>> 16;
+        int lo = blocks[block];
+        int hi = blocks[block + 1];
+        int key = address ^ Integer.MIN_VALUE;
+        //the last range starting at or before the address; t[lo] starts at or before the block
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if ((int) (t[mid] >> 32) <= key) lo = mid;
+            else hi = mid - 1;
+        }
+        return (int) t[lo];
+    }
+
+    /**
+     * @return number of ranges in the table
+     */
+    int size() {
+        return table.length;
+    }
+
+    /**
+     * add appends a range starting at start, replacing a range with the same start and merging it into the
+     * previous range if both map to the same subnet
+     */
+    private static int add(long[] ranges, int count, long start, int id) {
+        if (start(ranges[count - 1]) == start) count--;
+        if (count > 0 && (int) ranges[count - 1] == id) return count;
+        ranges[count] = range(start, id);
+        return count + 1;
+    }
+
+    private static long range(long start, int id) {
+        return (long) ((int) start ^ Integer.MIN_VALUE) << 32 | (id & 0xFFFFFFFFL);
+    }
+
+    private static long start(long range) {
+        return ((int) (range >> 32) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+    }
+
+    private static long end(ZoneView view, int id) {
+        return (view.getNetwork(id) & 0xFFFFFFFFL) + (ADDRESSES >>> view.getPrefix(id)) - 1;
+    }
+}
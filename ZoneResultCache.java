@@ -0,0 +1,96 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+/**
+ * ZoneResultCache holds the lookup results of the most requested IPv4 addresses for one ZoneView. A new view
+ * gets a new, empty cache, so a result can never outlive the snapshot it came from. Values are shared by every
+ * caller that hits them, so they must be immutable.
+ *
+ * The table is fixed size and set-associative: an address hashes to a set of WAYS slots and, when the set is
+ * full, CLOCK picks the victim (the first slot whose reference bit is clear, clearing bits on the way).
+ * Nothing locks. Entries are immutable apart from their reference bit, so a racing reader sees either the old
+ * or the new entry of a slot, and a lost update only costs a later miss.
+ *
+ * @param <V> cached result type
+ */
+final class ZoneResultCache<V> {
+    private static final int WAYS = 8;
+
+    private final ZoneView view;
+    private final Entry<V>[] slots;
+    private final byte[] hands;     // CLOCK hand per set
+    private final int shift;
+
+    /**
+     * @param view zone view the cached results were computed from
+     * @param capacity number of results to hold, rounded up to a power of two of at least WAYS
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ZoneResultCache(ZoneView view, int capacity) {
+        int sets = Math.max(1, Integer.highestOneBit(Math.max(WAYS, capacity) - 1) * 2 / WAYS);
+        this.view = view;
+        this.slots = new Entry[sets * WAYS];
+        this.hands = new byte[sets];
+        this.shift = 32 - Integer.numberOfTrailingZeros(sets);
+    }
+
+    ZoneView getView() {
+        return view;
+    }
+
+    /**
+     * get returns the cached result for the address
+     * @param address IPv4 address as an int
+     * @return the result, or null
+     */
+    V get(int address) {
+        int base = set(address) * WAYS;
+        for (int way = 0; way < WAYS; way++) {
+            Entry<V> entry = slots[base + way];
+            if (entry != null && entry.address == address) {
+                if (!entry.referenced) entry.referenced = true;
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * put stores the result for the address, evicting a cold entry of its set if the set is full
+     * @param address IPv4 address as an int
+     * @param value result to cache
+     */
+    void put(int address, V value) {
+        int set = set(address);
+        int base = set * WAYS;
+        for (int way = 0; way < WAYS; way++) {
+            Entry<V> entry = slots[base + way];
+            if (entry == null || entry.address == address) {
+                slots[base + way] = new Entry<>(address, value);
+                return;
+            }
+        }
+        int hand = hands[set];
+        for (int i = 0; i <= WAYS; i++, hand = (hand + 1) & (WAYS - 1)) {
+            Entry<V> entry = slots[base + hand];
+            if (entry == null || !entry.referenced || i == WAYS) break;
+            entry.referenced = false;
+        }
+        slots[base + hand] = new Entry<>(address, value);
+        hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+    }
+
+    private int set(int address) {
+        return shift == 32 ? 0 : (address * 0x9E3779B9) >>> shift;
+    }
+
+    private static final class Entry<V> {
+        final int address;
+        final V value;
+        boolean referenced;
+
+        Entry(int address, V value) {
+            this.address = address;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ZoneResultCodec writes lookup results in the compact format served as MEDIA_TYPE, for callers that send
+ * many lookups and do not want JSON. All numbers are big-endian.
+ *
+ * A result carries no strings. Service and zone names are ids into the name table of the snapshot that
+ * answered, which the caller fetches once per snapshot version and caches:
+ *
+ *   results:    'Z' 'R' format(1) epoch(8) version(8) count(4), then count records of
+ *               status(1) [family(1) prefix(1) network(4 for IPv4, 16 for IPv6) service(4) oldZone(4) newZone(4)]
+ *               where the bracketed part is only present for MATCH and EXCEPTION
+ *   name table: 'Z' 'N' format(1) epoch(8) version(8) count(4), then count names as length(2) UTF-8 bytes,
+ *               length NULL_NAME (and no bytes) for a name the database left null
+ *
+ * Records of a batch follow the order of the IPs sent; the IPs themselves are not echoed.
+ */
+final class ZoneResultCodec {
+    static final String MEDIA_TYPE = "application/vnd.zone-lookup.compact";
+
+    static final byte FORMAT = 1;
+    static final byte NO_MATCH = 0;
+    static final byte MATCH = 1;
+    static final byte EXCEPTION = 2;
+    static final byte INVALID_IP = 3;
+    //id passed to encode for an IP that did not parse
+    static final int INVALID = Integer.MIN_VALUE;
+
+    //name table length of a null name
+    static final int NULL_NAME = 0xFFFF;
+
+    private static final int HEADER = 2 + 1 + 8 + 8 + 4;
+    private static final int RECORD4 = 1 + 1 + 1 + 4 + 12;
+    private static final int RECORD6 = 1 + 1 + 1 + 16 + 12;
+
+    private ZoneResultCodec() {
+    }
+
+    /**
+     * acceptsCompact checks an Accept header for MEDIA_TYPE, so a controller can choose the encoding
+     * @param accept Accept header, or null
+     * @return true if the caller asked for the compact format
+     */
+    static boolean acceptsCompact(String accept) {
+        return accept != null && accept.contains(MEDIA_TYPE);
+    }
+
+    /**
+     * encode writes the results of a lookup or a batch
+     * @param view view that answered
+     * @param ids subnet of each IP, ZoneView.NOT_FOUND, or INVALID for IPs that did not parse
+     * @return the encoded results
+     */
+    static byte[] encode(ZoneView view, int[] ids) {
+        int length = HEADER;
+        for (int id : ids) length += id < 0 ? 1 : view.isIPv6(id) ? RECORD6 : RECORD4;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        header(out, 'R', view, ids.length);
+        for (int id : ids) {
+            if (id == INVALID) {
+                out.put(INVALID_IP);
+                continue;
+            }
+            if (id == ZoneView.NOT_FOUND) {
+                out.put(NO_MATCH);
+                continue;
+            }
+            out.put(view.isException(id) ? EXCEPTION : MATCH);
+            if (view.isIPv6(id)) {
+                out.put((byte) 6).put((byte) view.getPrefix(id)).putLong(view.getHigh(id)).putLong(view.getLow(id));
+            } else {
+                out.put((byte) 4).put((byte) view.getPrefix(id)).putInt(view.getNetwork(id));
+            }
+            out.putInt(view.getServiceId(id)).putInt(view.getOldZoneId(id)).putInt(view.getNewZoneId(id));
+        }
+        return out.array();
+    }
+
+    /**
+     * encodeNames writes the name table of a view
+     * @param view view whose dictionary to write
+     * @return the encoded table
+     */
+    static byte[] encodeNames(ZoneView view) {
+        int count = view.nameCount();
+        byte[][] names = new byte[count][];
+        int length = HEADER;
+        for (int n = 0; n < count; n++) {
+            String name = view.getName(n);
+            names[n] = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+            length += 2 + (name == null ? 0 : names[n].length);
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        header(out, 'N', view, count);
+        for (byte[] name : names) {
+            if (name == null) out.putShort((short) NULL_NAME);
+            else out.putShort((short) name.length).put(name);
+        }
+        return out.array();
+    }
+
+    private static void header(ByteBuffer out, char kind, ZoneView view, int count) {
+        out.put((byte) 'Z').put((byte) kind).put(FORMAT).putLong(view.getEpoch()).putLong(view.getVersion()).putInt(count);
+    }
+}
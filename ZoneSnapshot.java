@@ -0,0 +1,585 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ZoneSnapshot is an immutable, compact copy of the cached subnets.
+ * Each entry is a masked network (an int for IPv4, a pair of longs for IPv6), a CIDR (unsigned byte) and
+ * service/oldZone/newZone ids into a shared dictionary of names. An entry is identified by its network and
+ * CIDR together, so 10.0.0.0/8 and 10.0.0.0/16 are separate subnets. IPv4 entries come first, then IPv6
+ * entries, each sorted by network and then CIDR, and each family has its own index for longest-prefix-match
+ * lookups.
+ */
+final class ZoneSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ZoneSnapshot.class);
+
+    static final int NOT_FOUND = ZoneIndex.NOT_FOUND;
+
+    static final ZoneSnapshot EMPTY = new Builder().build();
+
+    private static final String[] CIDRS = new String[129];
+    static {
+        for (int prefix = 0; prefix <= 128; prefix++) CIDRS[prefix] = Integer.toString(prefix);
+    }
+
+    private final int size;
+    private final int size4;
+    private final int[] networks;
+    private final long[] highs;
+    private final long[] lows;
+    private final byte[] prefixes;
+    private final int[] services;
+    private final int[] oldZones;
+    private final int[] newZones;
+    private final String[] names;
+    private final ZoneIndex index;
+    private final ZoneIndex6 index6;
+    //built on the first select, most snapshots are never queried by attribute
+    private volatile ZoneAttributeIndex attributeIndex;
+
+    private ZoneSnapshot(int size4, int[] networks, long[] highs, long[] lows, byte[] prefixes,
+                         int[] services, int[] oldZones, int[] newZones, String[] names) {
+        this.size = prefixes.length;
+        this.size4 = size4;
+        this.networks = networks;
+        this.highs = highs;
+        this.lows = lows;
+        this.prefixes = prefixes;
+        this.services = services;
+        this.oldZones = oldZones;
+        this.newZones = newZones;
+        this.names = names;
+        this.index = new ZoneIndex(networks, prefixes, size4);
+        this.index6 = new ZoneIndex6(highs, lows, prefixes, size - size4, size4);
+    }
+
+    /**
+     * @return number of subnets in the snapshot
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * lookup finds the most specific subnet containing the address
+     * @param address IPv4 address as an int
+     * @return entry id, or NOT_FOUND
+     */
+    int lookup(int address) {
+        return index.lookup(address, null);
+    }
+
+    /**
+     * lookup finds the most specific subnet containing the address that is not hidden
+     * @param address IPv4 address as an int
+     * @param hidden bit set of entry ids to pass over
+     * @return entry id, or NOT_FOUND
+     */
+    int lookup(int address, long[] hidden) {
+        return index.lookup(address, hidden);
+    }
+
+    /**
+     * lookup6 finds the most specific IPv6 subnet containing the address that is not hidden
+     * @param high high 64 bits of the address
+     * @param low low 64 bits of the address
+     * @param hidden bit set of entry ids to pass over, or null
+     * @return entry id, or NOT_FOUND
+     */
+    int lookup6(long high, long low, long[] hidden) {
+        return index6.lookup(high, low, hidden);
+    }
+
+    /**
+     * find returns the first (shortest CIDR) IPv4 subnet whose network is exactly the given one; the other
+     * subnets on that network follow it, up to networkEnd
+     * @param network IPv4 network as an int
+     * @return entry id, or NOT_FOUND
+     */
+    int find(int network) {
+        int id = lowerBound(network, 0);
+        return id < size4 && networks[id] == network ? id : NOT_FOUND;
+    }
+
+    /**
+     * find returns the IPv4 subnet with exactly the given network and CIDR
+     * @param network IPv4 network as an int
+     * @param prefix CIDR
+     * @return entry id, or NOT_FOUND
+     */
+    int find(int network, int prefix) {
+        int id = lowerBound(network, prefix);
+        return id < size4 && networks[id] == network && getPrefix(id) == prefix ? id : NOT_FOUND;
+    }
+
+    /**
+     * find6 returns the first (shortest CIDR) IPv6 subnet whose network is exactly the given one; the other
+     * subnets on that network follow it, up to networkEnd
+     * @param networkHigh high 64 bits of the network
+     * @param networkLow low 64 bits of the network
+     * @return entry id, or NOT_FOUND
+     */
+    int find6(long networkHigh, long networkLow) {
+        int id = lowerBound6(networkHigh, networkLow, 0);
+        return id < size && highs[id - size4] == networkHigh && lows[id - size4] == networkLow ? id : NOT_FOUND;
+    }
+
+    /**
+     * find6 returns the IPv6 subnet with exactly the given network and CIDR
+     * @param networkHigh high 64 bits of the network
+     * @param networkLow low 64 bits of the network
+     * @param prefix CIDR
+     * @return entry id, or NOT_FOUND
+     */
+    int find6(long networkHigh, long networkLow, int prefix) {
+        int id = lowerBound6(networkHigh, networkLow, prefix);
+        return id < size && highs[id - size4] == networkHigh && lows[id - size4] == networkLow
+                && getPrefix(id) == prefix ? id : NOT_FOUND;
+    }
+
+    /**
+     * contained returns the IPv4 subnets inside network/prefix, itself included. Only subnets whose network
+     * equals the queried one can be shorter, so the walk is bounded by the output plus at most prefix entries.
+     * @param network IPv4 network as an int, masked to prefix
+     * @param prefix CIDR
+     * @return entry ids in (network, CIDR) order
+     */
+    int[] contained(int network, int prefix) {
+        int from = lowerBound(network, prefix);
+        int end = prefix == 0 ? 0 : network + (1 << (32 - prefix));   // first address after the block, 0 past the last
+        int to = end == 0 ? size4 : lowerBound(end, 0);
+        return range(from, to);
+    }
+
+    /**
+     * contained6 returns the IPv6 subnets inside the network/prefix, itself included
+     * @param networkHigh high 64 bits of the network, masked to prefix
+     * @param networkLow low 64 bits of the network, masked to prefix
+     * @param prefix CIDR
+     * @return entry ids in (network, CIDR) order
+     */
+    int[] contained6(long networkHigh, long networkLow, int prefix) {
+        int from = lowerBound6(networkHigh, networkLow, prefix);
+        long lastHigh = networkHigh | ~IPv6Address.maskHigh(prefix);
+        long lastLow = networkLow | ~IPv6Address.maskLow(prefix);
+        int to = from;
+        while (to < size && compare(highs[to - size4], lows[to - size4], lastHigh, lastLow) <= 0) to++;
+        return range(from, to);
+    }
+
+    private static int[] range(int from, int to) {
+        int[] ids = new int[Math.max(0, to - from)];
+        for (int i = 0; i < ids.length; i++) ids[i] = from + i;
+        return ids;
+    }
+
+    /**
+     * @param id entry id
+     * @return id after the last subnet sharing the network of id
+     */
+    int networkEnd(int id) {
+        int end = id + 1;
+        int last = id < size4 ? size4 : size;
+        if (id < size4) {
+            while (end < last && networks[end] == networks[id]) end++;
+        } else {
+            while (end < last && highs[end - size4] == highs[id - size4] && lows[end - size4] == lows[id - size4]) end++;
+        }
+        return end;
+    }
+
+    private int lowerBound(int network, int prefix) {
+        long key = ((long) (network ^ Integer.MIN_VALUE) << 8) | prefix;
+        int low = 0;
+        int high = size4;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if ((((long) (networks[mid] ^ Integer.MIN_VALUE) << 8) | getPrefix(mid)) < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int lowerBound6(long networkHigh, long networkLow, int prefix) {
+        int low = 0;
+        int high = size - size4;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(highs[mid], lows[mid], networkHigh, networkLow);
+            if (c < 0 || c == 0 && getPrefix(size4 + mid) < prefix) low = mid + 1;
+            else high = mid;
+        }
+        return size4 + low;
+    }
+
+    /**
+     * select returns the subnets with the given service and zones
+     * @param service service, or null for any
+     * @param oldZone oldZone, or null for any
+     * @param newZone newZone, or null for any
+     * @return entry ids in ascending order
+     */
+    int[] select(String service, String oldZone, String newZone) {
+        ZoneAttributeIndex index = attributeIndex;
+        if (index == null) {
+            //a racing first select builds it twice, both copies are equal
+            index = new ZoneAttributeIndex(names, services, oldZones, newZones);
+            attributeIndex = index;
+        }
+        return index.select(service, oldZone, newZone);
+    }
+
+    boolean isIPv6(int id) {
+        return id >= size4;
+    }
+
+    /**
+     * @param id IPv4 entry id
+     * @return network as an int
+     */
+    int getNetwork(int id) {
+        return networks[id];
+    }
+
+    /**
+     * @param id IPv6 entry id
+     * @return high 64 bits of the network
+     */
+    long getHigh(int id) {
+        return highs[id - size4];
+    }
+
+    /**
+     * @param id IPv6 entry id
+     * @return low 64 bits of the network
+     */
+    long getLow(int id) {
+        return lows[id - size4];
+    }
+
+    int getPrefix(int id) {
+        return prefixes[id] & 0xFF;
+    }
+
+    String getSubnet(int id) {
+        return id < size4 ? IPv4Address.format(networks[id]) : IPv6Address.format(highs[id - size4], lows[id - size4]);
+    }
+
+    String getCIDR(int id) {
+        return CIDRS[prefixes[id] & 0xFF];
+    }
+
+    String getService(int id) {
+        return names[services[id]];
+    }
+
+    String getOldZone(int id) {
+        return names[oldZones[id]];
+    }
+
+    String getNewZone(int id) {
+        return names[newZones[id]];
+    }
+
+    /**
+     * @return number of names in the dictionary
+     */
+    int nameCount() {
+        return names.length;
+    }
+
+    String getName(int nameId) {
+        return names[nameId];
+    }
+
+    int getServiceId(int id) {
+        return services[id];
+    }
+
+    int getOldZoneId(int id) {
+        return oldZones[id];
+    }
+
+    int getNewZoneId(int id) {
+        return newZones[id];
+    }
+
+    /**
+     * sameEntries compares the subnets and names of two snapshots
+     * @param other snapshot to compare to
+     * @return true if both hold the same subnets with the same service and zones
+     */
+    boolean sameEntries(ZoneSnapshot other) {
+        if (other == this) return true;
+        if (other == null || other.size != size || other.size4 != size4) return false;
+        if (!Arrays.equals(networks, other.networks) || !Arrays.equals(highs, other.highs)
+                || !Arrays.equals(lows, other.lows) || !Arrays.equals(prefixes, other.prefixes)) return false;
+        for (int id = 0; id < size; id++) {
+            if (!Objects.equals(getService(id), other.getService(id))
+                    || !Objects.equals(getOldZone(id), other.getOldZone(id))
+                    || !Objects.equals(getNewZone(id), other.getNewZone(id))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * writeTo writes the names and entries in the layout read by readFrom
+     * @param out destination
+     * @throws IOException if out fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            if (name == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.writeInt(size);
+        out.writeInt(size4);
+        for (int network : networks) out.writeInt(network);
+        for (int i = 0; i < highs.length; i++) {
+            out.writeLong(highs[i]);
+            out.writeLong(lows[i]);
+        }
+        out.write(prefixes, 0, size);
+        for (int id = 0; id < size; id++) out.writeInt(services[id]);
+        for (int id = 0; id < size; id++) out.writeInt(oldZones[id]);
+        for (int id = 0; id < size; id++) out.writeInt(newZones[id]);
+    }
+
+    /**
+     * readFrom reads a snapshot written by writeTo
+     * @param in buffer positioned at the snapshot, advanced past it
+     * @return the snapshot
+     * @throws IOException if the data is inconsistent
+     */
+    static ZoneSnapshot readFrom(ByteBuffer in) throws IOException {
+        String[] names = new String[in.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            int length = in.getInt();
+            if (length < 0) continue;
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int size = in.getInt();
+        int size4 = in.getInt();
+        if (size4 < 0 || size4 > size) throw new IOException("Corrupt zone snapshot header");
+        int[] networks = readInts(in, size4);
+        long[] highs = new long[size - size4];
+        long[] lows = new long[size - size4];
+        for (int i = 0; i < highs.length; i++) {
+            highs[i] = in.getLong();
+            lows[i] = in.getLong();
+        }
+        byte[] prefixes = new byte[size];
+        in.get(prefixes);
+        int[] services = readInts(in, size);
+        int[] oldZones = readInts(in, size);
+        int[] newZones = readInts(in, size);
+        for (int id = 0; id < size; id++) {
+            int prefix = prefixes[id] & 0xFF;
+            if (prefix > (id < size4 ? 32 : 128) || services[id] >= names.length
+                    || oldZones[id] >= names.length || newZones[id] >= names.length) {
+                throw new IOException("Corrupt zone snapshot entry " + id);
+            }
+        }
+        return new ZoneSnapshot(size4, networks, highs, lows, prefixes, services, oldZones, newZones, names);
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * 4);
+        return values;
+    }
+
+    /**
+     * parsePrefix parses a CIDR
+     * @param CIDR String
+     * @param max longest CIDR allowed, 32 or 128
+     * @return the CIDR, or -1 if it is not a number between 0 and max
+     */
+    static int parsePrefix(String CIDR, int max) {
+        if (CIDR == null) return -1;
+        try {
+            int prefix = Integer.parseInt(CIDR.trim());
+            return prefix >= 0 && prefix <= max ? prefix : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * compare orders IPv6 networks as unsigned 128 bit values
+     */
+    static int compare(long high1, long low1, long high2, long low2) {
+        int c = Long.compareUnsigned(high1, high2);
+        return c != 0 ? c : Long.compareUnsigned(low1, low2);
+    }
+
+    /**
+     * Builder collects subnets from ZoneMapping/ExceptionIPs rows. A later subnet with the same network and
+     * CIDR overrides an earlier one; subnets that only share the network are all kept.
+     */
+    static final class Builder {
+        private static final int MAX_SIZE = 1 << 26;   // insertion order has 26 bits of the IPv4 sort key
+
+        private int size;
+        private boolean[] ipv6 = new boolean[16];
+        private long[] highs = new long[16];   // IPv6 only
+        private long[] lows = new long[16];    // IPv6 low bits, or the IPv4 network
+        private byte[] prefixes = new byte[16];
+        private int[] services = new int[16];
+        private int[] oldZones = new int[16];
+        private int[] newZones = new int[16];
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private String[] names = new String[16];
+        private final long[] parsed = new long[2];
+
+        /**
+         * add adds an IPv4 or IPv6 subnet, skipping it if the subnet or CIDR cannot be parsed
+         * @param subnet String
+         * @param CIDR String
+         * @param service String
+         * @param oldZone String
+         * @param newZone String
+         * @return true if the subnet was added
+         */
+        boolean add(String subnet, String CIDR, String service, String oldZone, String newZone) {
+            boolean v6 = subnet != null && subnet.indexOf(':') >= 0;
+            int prefix = parsePrefix(CIDR, v6 ? 128 : 32);
+            if (v6 ? !IPv6Address.parse(subnet, parsed) : (parsed[1] = IPv4Address.parse(subnet)) < 0) prefix = -1;
+            if (prefix < 0) {
+                log.warn("Skipping unparseable subnet " + subnet + "/" + CIDR);
+                return false;
+            }
+            if (v6) {
+                add(true, parsed[0] & IPv6Address.maskHigh(prefix), parsed[1] & IPv6Address.maskLow(prefix), prefix,
+                        intern(service), intern(oldZone), intern(newZone));
+            } else {
+                add(false, 0, (int) parsed[1] & IPv4Address.mask(prefix), prefix, intern(service), intern(oldZone), intern(newZone));
+            }
+            return true;
+        }
+
+        /**
+         * add copies an entry from another snapshot
+         * @param snapshot source snapshot
+         * @param id entry id in snapshot
+         */
+        void add(ZoneSnapshot snapshot, int id) {
+            boolean v6 = snapshot.isIPv6(id);
+            add(v6, v6 ? snapshot.getHigh(id) : 0, v6 ? snapshot.getLow(id) : snapshot.getNetwork(id), snapshot.getPrefix(id),
+                    intern(snapshot.getService(id)), intern(snapshot.getOldZone(id)), intern(snapshot.getNewZone(id)));
+        }
+
+        private void add(boolean v6, long high, long low, int prefix, int service, int oldZone, int newZone) {
+            if (size == MAX_SIZE) throw new IllegalStateException("More than " + MAX_SIZE + " subnets");
+            if (size == prefixes.length) {
+                int capacity = size * 2;
+                ipv6 = Arrays.copyOf(ipv6, capacity);
+                highs = Arrays.copyOf(highs, capacity);
+                lows = Arrays.copyOf(lows, capacity);
+                prefixes = Arrays.copyOf(prefixes, capacity);
+                services = Arrays.copyOf(services, capacity);
+                oldZones = Arrays.copyOf(oldZones, capacity);
+                newZones = Arrays.copyOf(newZones, capacity);
+            }
+            ipv6[size] = v6;
+            highs[size] = high;
+            lows[size] = low;
+            prefixes[size] = (byte) prefix;
+            services[size] = service;
+            oldZones[size] = oldZone;
+            newZones[size] = newZone;
+            size++;
+        }
+
+        private int intern(String name) {
+            Integer id = dictionary.get(name);
+            if (id != null) return id;
+            int next = dictionary.size();
+            if (next == names.length) names = Arrays.copyOf(names, next * 2);
+            names[next] = name;
+            dictionary.put(name, next);
+            return next;
+        }
+
+        /**
+         * build sorts the subnets by network and CIDR, keeps the last one added per network and CIDR and
+         * compiles the indexes
+         * @return the snapshot
+         */
+        ZoneSnapshot build() {
+            // IPv4: network (sign-flipped so signed order is unsigned order) in the high half, then CIDR in 6 bits,
+            // then insertion order
+            int count6 = 0;
+            for (int i = 0; i < size; i++) if (ipv6[i]) count6++;
+            long[] order = new long[size - count6];
+            Integer[] order6 = new Integer[count6];
+            for (int i = 0, n4 = 0, n6 = 0; i < size; i++) {
+                if (ipv6[i]) order6[n6++] = i;
+                else order[n4++] = ((long) ((int) lows[i] ^ Integer.MIN_VALUE) << 32) | ((long) prefixes[i] << 26) | i;
+            }
+            Arrays.sort(order);
+            Arrays.sort(order6, (a, b) -> {
+                int c = compare(highs[a], lows[a], highs[b], lows[b]);
+                if (c == 0) c = Integer.compare(prefixes[a] & 0xFF, prefixes[b] & 0xFF);
+                return c != 0 ? c : Integer.compare(a, b);
+            });
+
+            int size4 = 0;
+            for (int i = 0; i < order.length; i++) {
+                if (i + 1 < order.length && (order[i] >>> 26) == (order[i + 1] >>> 26)) continue;
+                order[size4++] = order[i];
+            }
+            int size6 = 0;
+            for (int i = 0; i < order6.length; i++) {
+                int a = order6[i];
+                if (i + 1 < order6.length && highs[a] == highs[order6[i + 1]] && lows[a] == lows[order6[i + 1]]
+                        && prefixes[a] == prefixes[order6[i + 1]]) continue;
+                order6[size6++] = order6[i];
+            }
+
+            int count = size4 + size6;
+            int[] n = new int[size4];
+            long[] h = new long[size6];
+            long[] l = new long[size6];
+            byte[] p = new byte[count];
+            int[] s = new int[count];
+            int[] o = new int[count];
+            int[] z = new int[count];
+            for (int id = 0; id < count; id++) {
+                int i;
+                if (id < size4) {
+                    i = (int) order[id] & (MAX_SIZE - 1);
+                    n[id] = (int) lows[i];
+                } else {
+                    i = order6[id - size4];
+                    h[id - size4] = highs[i];
+                    l[id - size4] = lows[i];
+                }
+                p[id] = prefixes[i];
+                s[id] = services[i];
+                o[id] = oldZones[i];
+                z[id] = newZones[i];
+            }
+            return new ZoneSnapshot(size4, n, h, l, p, s, o, z, Arrays.copyOf(names, dictionary.size()));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * ZoneSnapshotDistribution moves compiled snapshots from the leader node to its followers through a shared
+ * directory, or over HTTP from the leader's copy of that directory.
+ *
+ * The leader writes the zone mapping snapshot only when it changes, and the exceptions snapshot (the delta
+ * between zone mapping reloads) on every publish, each as its own ZoneSnapshotFile named by version. It then
+ * replaces the manifest, one line of "epoch version zoneMappingFile exceptionsFile". Followers poll the
+ * manifest and read only the files they do not have yet, so every node serves the same version while only
+ * the leader reads the database.
+ */
+final class ZoneSnapshotDistribution {
+    static final String MANIFEST = "manifest";
+    private static final Pattern FILE_NAME = Pattern.compile("(zonemapping|exceptions)-[0-9a-f]+-[0-9]+\\.zsnap|" + MANIFEST);
+
+    private final String source;
+    private final boolean http;
+    private final int timeoutMillis;
+
+    //leader state: the zone mapping file of the current manifest and the files the previous manifest named
+    private ZoneSnapshot writtenZoneMapping;
+    private String writtenZoneMappingFile;
+    private Manifest written;
+
+    /**
+     * @param source shared directory, or base http(s) URL of the leader's distribution files
+     * @param timeoutMillis connect timeout, and longest wait for data, of each HTTP request
+     */
+    ZoneSnapshotDistribution(String source, int timeoutMillis) {
+        this.http = source.startsWith("http://") || source.startsWith("https://");
+        this.source = http && !source.endsWith("/") ? source + "/" : source;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Manifest is the version published by the leader and the files holding it
+     */
+    static final class Manifest {
+        final long epoch;
+        final long version;
+        final String zoneMappingFile;
+        final String exceptionsFile;
+
+        Manifest(long epoch, long version, String zoneMappingFile, String exceptionsFile) {
+            this.epoch = epoch;
+            this.version = version;
+            this.zoneMappingFile = zoneMappingFile;
+            this.exceptionsFile = exceptionsFile;
+        }
+
+        @Override
+        public String toString() {
+            return epoch + " " + version + " " + zoneMappingFile + " " + exceptionsFile;
+        }
+    }
+
+    /**
+     * isFileName checks a name against the files the leader writes, so a request cannot reach other files
+     * @param name file name
+     * @return true if name is the manifest or a snapshot file
+     */
+    static boolean isFileName(String name) {
+        return name != null && FILE_NAME.matcher(name).matches();
+    }
+
+    /**
+     * resolve gives the path of a distribution file on the leader
+     * @param name file name, checked with isFileName
+     * @return path in the shared directory
+     */
+    Path resolve(String name) {
+        return Paths.get(source).resolve(name);
+    }
+
+    /**
+     * write publishes a version: the zone mapping file if the snapshot changed since the last write, the
+     * exceptions file, then the manifest. Files named by neither this nor the previous manifest are removed,
+     * giving followers that are mid-read one publish to finish.
+     * @param epoch start time of the leader, so a restarted leader's versions are not mistaken for old ones
+     * @param version version of the zone view being published
+     * @param zoneMapping zone mapping snapshot of that view
+     * @param exceptions exceptions snapshot of that view
+     * @throws IOException if a file cannot be written
+     */
+    synchronized void write(long epoch, long version, ZoneSnapshot zoneMapping, ZoneSnapshot exceptions) throws IOException {
+        if (written != null && written.epoch == epoch && written.version >= version) return;
+        Path dir = Paths.get(source);
+        Files.createDirectories(dir);
+        if (zoneMapping != writtenZoneMapping) {
+            String name = "zonemapping-" + Long.toHexString(epoch) + "-" + version + ".zsnap";
+            ZoneSnapshotFile.write(dir.resolve(name), zoneMapping, ZoneSnapshot.EMPTY);
+            writtenZoneMapping = zoneMapping;
+            writtenZoneMappingFile = name;
+        }
+        String exceptionsFile = "exceptions-" + Long.toHexString(epoch) + "-" + version + ".zsnap";
+        ZoneSnapshotFile.write(dir.resolve(exceptionsFile), ZoneSnapshot.EMPTY, exceptions);
+
+        Manifest manifest = new Manifest(epoch, version, writtenZoneMappingFile, exceptionsFile);
+        Path tmp = Files.createTempFile(dir, MANIFEST, ".tmp");
+        try {
+            Files.write(tmp, (manifest + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        Set<String> keep = new HashSet<>();
+        keep.add(manifest.zoneMappingFile);
+        keep.add(manifest.exceptionsFile);
+        if (written != null) {
+            keep.add(written.zoneMappingFile);
+            keep.add(written.exceptionsFile);
+        }
+        written = manifest;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".zsnap") && !keep.contains(name)) Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * readManifest reads the version the leader published last
+     * @return the manifest, or null if the leader has not published yet
+     * @throws IOException if the manifest cannot be read or parsed
+     */
+    Manifest readManifest() throws IOException {
+        byte[] bytes;
+        if (http) {
+            try (InputStream in = open(MANIFEST)) {
+                bytes = readAll(in);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        } else {
+            Path path = resolve(MANIFEST);
+            if (!Files.exists(path)) return null;
+            bytes = Files.readAllBytes(path);
+        }
+        String[] fields = new String(bytes, StandardCharsets.UTF_8).trim().split(" ");
+        if (fields.length != 4 || !isFileName(fields[2]) || !isFileName(fields[3])) throw new IOException("Malformed zone snapshot manifest");
+        try {
+            return new Manifest(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed zone snapshot manifest", e);
+        }
+    }
+
+    /**
+     * read reads a snapshot file named by a manifest; over HTTP it is downloaded to a temporary file first
+     * @param name file name
+     * @return the snapshots in the file
+     * @throws IOException if the file is missing or corrupt
+     */
+    ZoneSnapshotFile read(String name) throws IOException {
+        if (!http) return ZoneSnapshotFile.read(resolve(name));
+        Path tmp = Files.createTempFile(name, ".tmp");
+        try {
+            try (InputStream in = open(name)) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return ZoneSnapshotFile.read(tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * open requests a file from the leader; without the timeouts a leader that stalls would block the
+     * follower's refresher thread, and so every later pull, forever
+     */
+    private InputStream open(String name) throws IOException {
+        URLConnection connection = new URL(source + name).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        return connection.getInputStream();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[256];
+        for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
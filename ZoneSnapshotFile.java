@@ -0,0 +1,115 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * ZoneSnapshotFile stores the zone mapping and exceptions snapshots in a versioned binary file so a node can
+ * start serving lookups before the inventory database has been read.
+ *
+ * Layout: magic, format version, creation time (ms), zone mapping snapshot, exceptions snapshot, then the
+ * CRC32 of everything before it.
+ */
+final class ZoneSnapshotFile {
+    private static final int MAGIC = 0x5A4E5350; // "ZNSP"
+    static final int FORMAT_VERSION = 2;
+
+    private final ZoneSnapshot zoneMapping;
+    private final ZoneSnapshot exceptions;
+    private final long createdAt;
+
+    private ZoneSnapshotFile(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions, long createdAt) {
+        this.zoneMapping = zoneMapping;
+        this.exceptions = exceptions;
+        this.createdAt = createdAt;
+    }
+
+    ZoneSnapshot getZoneMapping() {
+        return zoneMapping;
+    }
+
+    ZoneSnapshot getExceptions() {
+        return exceptions;
+    }
+
+    /**
+     * @return when the snapshots were written, in ms since the epoch
+     */
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * write stores both snapshots; the file is written next to path and moved over it, so readers never see
+     * a partial file
+     * @param path file to write
+     * @param zoneMapping zone mapping snapshot
+     * @param exceptions exceptions snapshot
+     * @throws IOException if the file cannot be written
+     */
+    static void write(Path path, ZoneSnapshot zoneMapping, ZoneSnapshot exceptions) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (OutputStream file = Files.newOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(System.currentTimeMillis());
+                zoneMapping.writeTo(out);
+                exceptions.writeTo(out);
+                out.flush();
+                new DataOutputStream(file).writeLong(crc.getValue());
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * read memory-maps the file and verifies its checksum before decoding it
+     * @param path file to read
+     * @return the snapshots
+     * @throws IOException if the file is missing, of another format version, or corrupt
+     */
+    static ZoneSnapshotFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < 24) throw new IOException("Zone snapshot file is truncated");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            ByteBuffer body = buffer.duplicate();
+            body.limit((int) length - 8);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong((int) length - 8)) throw new IOException("Zone snapshot file checksum mismatch");
+
+            buffer.limit((int) length - 8);
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a zone snapshot file");
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported zone snapshot format " + version);
+            long createdAt = buffer.getLong();
+            try {
+                ZoneSnapshot zoneMapping = ZoneSnapshot.readFrom(buffer);
+                ZoneSnapshot exceptions = ZoneSnapshot.readFrom(buffer);
+                return new ZoneSnapshotFile(zoneMapping, exceptions, createdAt);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt zone snapshot file", e);
+            }
+        }
+    }
+}
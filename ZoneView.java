@@ -0,0 +1,426 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import java.util.Arrays;
+
+/**
+ * ZoneView is what lookups read: the ZoneMapping snapshot with the ExceptionIPs snapshot laid over it.
+ * An exception hides the zone mapping with the same network and CIDR. Neither snapshot is copied, so a change to
+ * the exceptions only costs a new (small) exceptions snapshot and a new hidden set.
+ *
+ * Ids below getZoneMapping().size() are zone mapping entries, the rest are exceptions.
+ */
+final class ZoneView {
+    static final int NOT_FOUND = ZoneSnapshot.NOT_FOUND;
+
+    private final ZoneSnapshot zoneMapping;
+    private final ZoneSnapshot exceptions;
+    private final long[] hidden;
+    private final int base;
+    private final int size;
+    private final long epoch;
+    private final long version;
+    //flattened IPv4 lookup table, if this view was built for the "ranges" engine
+    private final ZoneRangeTable ranges;
+
+    /**
+     * @param zoneMapping snapshot of ZoneMapping
+     * @param exceptions snapshot of ExceptionIPs
+     */
+    ZoneView(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions) {
+        this(zoneMapping, exceptions, 0);
+    }
+
+    /**
+     * @param zoneMapping snapshot of ZoneMapping
+     * @param exceptions snapshot of ExceptionIPs
+     * @param version number of this view, increasing with every publish
+     */
+    ZoneView(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions, long version) {
+        this(zoneMapping, exceptions, version, false);
+    }
+
+    /**
+     * @param zoneMapping snapshot of ZoneMapping
+     * @param exceptions snapshot of ExceptionIPs
+     * @param version number of this view, increasing with every publish
+     * @param flatRanges true to answer IPv4 lookups from a ZoneRangeTable instead of the snapshot indexes
+     */
+    ZoneView(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions, long version, boolean flatRanges) {
+        this(zoneMapping, exceptions, 0, version, flatRanges);
+    }
+
+    /**
+     * @param zoneMapping snapshot of ZoneMapping
+     * @param exceptions snapshot of ExceptionIPs
+     * @param epoch start time of the node that numbered the version
+     * @param version number of this view, increasing with every publish within the epoch
+     * @param flatRanges true to answer IPv4 lookups from a ZoneRangeTable instead of the snapshot indexes
+     */
+    ZoneView(ZoneSnapshot zoneMapping, ZoneSnapshot exceptions, long epoch, long version, boolean flatRanges) {
+        this.epoch = epoch;
+        this.version = version;
+        this.zoneMapping = zoneMapping;
+        this.exceptions = exceptions;
+        this.base = zoneMapping.size();
+        this.hidden = new long[(base >>> 6) + 1];
+        int hiddenCount = 0;
+        for (int id = 0; id < exceptions.size(); id++) {
+            int replaced = exceptions.isIPv6(id)
+                    ? zoneMapping.find6(exceptions.getHigh(id), exceptions.getLow(id), exceptions.getPrefix(id))
+                    : zoneMapping.find(exceptions.getNetwork(id), exceptions.getPrefix(id));
+            if (replaced != NOT_FOUND && !isHidden(replaced)) {
+                hidden[replaced >>> 6] |= 1L << replaced;
+                hiddenCount++;
+            }
+        }
+        this.size = base - hiddenCount + exceptions.size();
+        this.ranges = flatRanges ? new ZoneRangeTable(this) : null;
+    }
+
+    ZoneSnapshot getZoneMapping() {
+        return zoneMapping;
+    }
+
+    ZoneSnapshot getExceptions() {
+        return exceptions;
+    }
+
+    /**
+     * @return epoch of the version; both are read from the same view so they always belong together
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of visible subnets
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * lookup finds the most specific visible subnet containing the address
+     * @param address IPv4 address as an int
+     * @return id, or NOT_FOUND
+     */
+    int lookup(int address) {
+        if (ranges != null) return ranges.lookup(address);
+        int exception = exceptions.lookup(address);
+        int mapping = zoneMapping.lookup(address, hidden);
+        if (mapping == NOT_FOUND) return exception == NOT_FOUND ? NOT_FOUND : base + exception;
+        if (exception == NOT_FOUND || zoneMapping.getPrefix(mapping) > exceptions.getPrefix(exception)) return mapping;
+        return base + exception;
+    }
+
+    /**
+     * lookup6 finds the most specific visible IPv6 subnet containing the address
+     * @param high high 64 bits of the address
+     * @param low low 64 bits of the address
+     * @return id, or NOT_FOUND
+     */
+    int lookup6(long high, long low) {
+        int exception = exceptions.lookup6(high, low, null);
+        int mapping = zoneMapping.lookup6(high, low, hidden);
+        if (mapping == NOT_FOUND) return exception == NOT_FOUND ? NOT_FOUND : base + exception;
+        if (exception == NOT_FOUND || zoneMapping.getPrefix(mapping) > exceptions.getPrefix(exception)) return mapping;
+        return base + exception;
+    }
+
+    /**
+     * findAll returns the visible IPv4 subnets whose network is exactly the given one
+     * @param network IPv4 network as an int
+     * @return ids, shortest CIDR first
+     */
+    int[] findAll(int network) {
+        return findAll(zoneMapping.find(network), exceptions.find(network));
+    }
+
+    /**
+     * findAll6 returns the visible IPv6 subnets whose network is exactly the given one
+     * @param networkHigh high 64 bits of the network
+     * @param networkLow low 64 bits of the network
+     * @return ids, shortest CIDR first
+     */
+    int[] findAll6(long networkHigh, long networkLow) {
+        return findAll(zoneMapping.find6(networkHigh, networkLow), exceptions.find6(networkHigh, networkLow));
+    }
+
+    /**
+     * findAll merges the subnets on one network from both snapshots by CIDR
+     * @param mapping first zone mapping entry on the network, or NOT_FOUND
+     * @param exception first exception on the network, or NOT_FOUND
+     * @return ids, shortest CIDR first
+     */
+    private int[] findAll(int mapping, int exception) {
+        int mappingEnd = mapping == NOT_FOUND ? NOT_FOUND : zoneMapping.networkEnd(mapping);
+        int exceptionEnd = exception == NOT_FOUND ? NOT_FOUND : exceptions.networkEnd(exception);
+        int[] found = new int[(mappingEnd - mapping) + (exceptionEnd - exception)];
+        int n = 0;
+        while (mapping < mappingEnd || exception < exceptionEnd) {
+            if (mapping < mappingEnd && isHidden(mapping)) {
+                mapping++;
+            } else if (exception == exceptionEnd
+                    || mapping < mappingEnd && zoneMapping.getPrefix(mapping) < exceptions.getPrefix(exception)) {
+                found[n++] = mapping++;
+            } else {
+                found[n++] = base + exception++;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * find returns the visible IPv4 subnet with exactly the given network and CIDR
+     * @param network IPv4 network as an int
+     * @param prefix CIDR
+     * @return id, or NOT_FOUND
+     */
+    int find(int network, int prefix) {
+        int exception = exceptions.find(network, prefix);
+        if (exception != NOT_FOUND) return base + exception;
+        return zoneMapping.find(network, prefix);
+    }
+
+    /**
+     * find6 returns the visible IPv6 subnet with exactly the given network and CIDR
+     * @param networkHigh high 64 bits of the network
+     * @param networkLow low 64 bits of the network
+     * @param prefix CIDR
+     * @return id, or NOT_FOUND
+     */
+    int find6(long networkHigh, long networkLow, int prefix) {
+        int exception = exceptions.find6(networkHigh, networkLow, prefix);
+        if (exception != NOT_FOUND) return base + exception;
+        return zoneMapping.find6(networkHigh, networkLow, prefix);
+    }
+
+    /**
+     * contained returns the visible IPv4 subnets inside network/prefix, itself included
+     * @param network IPv4 network as an int, masked to prefix
+     * @param prefix CIDR
+     * @return ids in (network, CIDR) order
+     */
+    int[] contained(int network, int prefix) {
+        return merge(zoneMapping.contained(network, prefix), exceptions.contained(network, prefix));
+    }
+
+    /**
+     * contained6 returns the visible IPv6 subnets inside network/prefix, itself included
+     * @param networkHigh high 64 bits of the network, masked to prefix
+     * @param networkLow low 64 bits of the network, masked to prefix
+     * @param prefix CIDR
+     * @return ids in (network, CIDR) order
+     */
+    int[] contained6(long networkHigh, long networkLow, int prefix) {
+        return merge(zoneMapping.contained6(networkHigh, networkLow, prefix), exceptions.contained6(networkHigh, networkLow, prefix));
+    }
+
+    /**
+     * covering returns the visible IPv4 subnets that contain network/prefix, itself included
+     * @param network IPv4 network as an int, masked to prefix
+     * @param prefix CIDR
+     * @return ids, shortest CIDR first
+     */
+    int[] covering(int network, int prefix) {
+        int[] found = new int[prefix + 1];
+        int n = 0;
+        for (int length = 0; length <= prefix; length++) {
+            int id = find(network & IPv4Address.mask(length), length);
+            if (id != NOT_FOUND) found[n++] = id;
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * covering6 returns the visible IPv6 subnets that contain network/prefix, itself included
+     * @param networkHigh high 64 bits of the network, masked to prefix
+     * @param networkLow low 64 bits of the network, masked to prefix
+     * @param prefix CIDR
+     * @return ids, shortest CIDR first
+     */
+    int[] covering6(long networkHigh, long networkLow, int prefix) {
+        int[] found = new int[prefix + 1];
+        int n = 0;
+        for (int length = 0; length <= prefix; length++) {
+            int id = find6(networkHigh & IPv6Address.maskHigh(length), networkLow & IPv6Address.maskLow(length), length);
+            if (id != NOT_FOUND) found[n++] = id;
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * gaps returns the address ranges inside network/prefix that no visible subnet covers
+     * @param network IPv4 network as an int, masked to prefix
+     * @param prefix CIDR
+     * @return first and last address of each gap, as unsigned values, in address order
+     */
+    long[] gaps(int network, int prefix) {
+        if (covering(network, prefix).length > 0) return new long[0];
+        long next = network & 0xFFFFFFFFL;
+        long end = next + (1L << (32 - prefix));
+        long[] gaps = new long[16];
+        int n = 0;
+        for (int id : contained(network, prefix)) {
+            long first = getNetwork(id) & 0xFFFFFFFFL;
+            if (first > next) {
+                if (n + 2 > gaps.length) gaps = Arrays.copyOf(gaps, n * 2);
+                gaps[n++] = next;
+                gaps[n++] = first - 1;
+            }
+            next = Math.max(next, first + (1L << (32 - getPrefix(id))));
+        }
+        if (next < end) {
+            if (n + 2 > gaps.length) gaps = Arrays.copyOf(gaps, n * 2);
+            gaps[n++] = next;
+            gaps[n++] = end - 1;
+        }
+        return Arrays.copyOf(gaps, n);
+    }
+
+    /**
+     * merge combines zone mapping and exception ids of one family into view ids in (network, CIDR) order,
+     * leaving out hidden zone mappings
+     */
+    private int[] merge(int[] mapping, int[] exception) {
+        int[] merged = new int[mapping.length + exception.length];
+        int n = 0;
+        int m = 0;
+        int e = 0;
+        while (m < mapping.length || e < exception.length) {
+            if (m < mapping.length && isHidden(mapping[m])) {
+                m++;
+            } else if (e == exception.length || m < mapping.length && compare(mapping[m], base + exception[e]) < 0) {
+                merged[n++] = mapping[m++];
+            } else {
+                merged[n++] = base + exception[e++];
+            }
+        }
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * compare orders two subnets of the same family by network, then CIDR
+     */
+    int compare(int a, int b) {
+        int c = isIPv6(a)
+                ? ZoneSnapshot.compare(getHigh(a), getLow(a), getHigh(b), getLow(b))
+                : Integer.compareUnsigned(getNetwork(a), getNetwork(b));
+        return c != 0 ? c : Integer.compare(getPrefix(a), getPrefix(b));
+    }
+
+    /**
+     * select returns the visible subnets with the given service and zones
+     * @param service service, or null for any
+     * @param oldZone oldZone, or null for any
+     * @param newZone newZone, or null for any
+     * @return ids in ascending order
+     */
+    int[] select(String service, String oldZone, String newZone) {
+        int[] mapping = zoneMapping.select(service, oldZone, newZone);
+        int[] exception = exceptions.select(service, oldZone, newZone);
+        int[] selected = new int[mapping.length + exception.length];
+        int n = 0;
+        for (int id : mapping) if (!isHidden(id)) selected[n++] = id;
+        for (int id : exception) selected[n++] = base + id;
+        return n == selected.length ? selected : Arrays.copyOf(selected, n);
+    }
+
+    /**
+     * @return id of the first visible subnet, or NOT_FOUND
+     */
+    int first() {
+        return next(-1);
+    }
+
+    /**
+     * @param id current id
+     * @return id of the visible subnet after id, or NOT_FOUND
+     */
+    int next(int id) {
+        for (id++; id < base; id++) {
+            if (!isHidden(id)) return id;
+        }
+        return id < base + exceptions.size() ? id : NOT_FOUND;
+    }
+
+    /**
+     * @param id visible subnet
+     * @return true if the subnet comes from ExceptionIPs
+     */
+    boolean isException(int id) {
+        return id >= base;
+    }
+
+    boolean isIPv6(int id) {
+        return id < base ? zoneMapping.isIPv6(id) : exceptions.isIPv6(id - base);
+    }
+
+    int getNetwork(int id) {
+        return id < base ? zoneMapping.getNetwork(id) : exceptions.getNetwork(id - base);
+    }
+
+    long getHigh(int id) {
+        return id < base ? zoneMapping.getHigh(id) : exceptions.getHigh(id - base);
+    }
+
+    long getLow(int id) {
+        return id < base ? zoneMapping.getLow(id) : exceptions.getLow(id - base);
+    }
+
+    int getPrefix(int id) {
+        return id < base ? zoneMapping.getPrefix(id) : exceptions.getPrefix(id - base);
+    }
+
+    String getSubnet(int id) {
+        return id < base ? zoneMapping.getSubnet(id) : exceptions.getSubnet(id - base);
+    }
+
+    String getCIDR(int id) {
+        return id < base ? zoneMapping.getCIDR(id) : exceptions.getCIDR(id - base);
+    }
+
+    String getService(int id) {
+        return id < base ? zoneMapping.getService(id) : exceptions.getService(id - base);
+    }
+
+    String getOldZone(int id) {
+        return id < base ? zoneMapping.getOldZone(id) : exceptions.getOldZone(id - base);
+    }
+
+    String getNewZone(int id) {
+        return id < base ? zoneMapping.getNewZone(id) : exceptions.getNewZone(id - base);
+    }
+
+    /**
+     * @return number of names in the view's dictionary: the zone mapping names, then the exception names
+     */
+    int nameCount() {
+        return zoneMapping.nameCount() + exceptions.nameCount();
+    }
+
+    String getName(int nameId) {
+        int mappingNames = zoneMapping.nameCount();
+        return nameId < mappingNames ? zoneMapping.getName(nameId) : exceptions.getName(nameId - mappingNames);
+    }
+
+    int getServiceId(int id) {
+        return id < base ? zoneMapping.getServiceId(id) : zoneMapping.nameCount() + exceptions.getServiceId(id - base);
+    }
+
+    int getOldZoneId(int id) {
+        return id < base ? zoneMapping.getOldZoneId(id) : zoneMapping.nameCount() + exceptions.getOldZoneId(id - base);
+    }
+
+    int getNewZoneId(int id) {
+        return id < base ? zoneMapping.getNewZoneId(id) : zoneMapping.nameCount() + exceptions.getNewZoneId(id - base);
+    }
+
+    private boolean isHidden(int id) {
+        return (hidden[id >>> 6] & (1L << id)) != 0;
+    }
+}
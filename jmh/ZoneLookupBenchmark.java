@@ -0,0 +1,219 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZoneLookupBenchmark measures the lookup engine behind ZoneLookupServiceImpl on synthetic
+ * ZoneMapping/ExceptionIPs data. The service reads only the published ZoneView, so it is driven by
+ * setting zoneView directly instead of going through the repositories.
+ *
+ * Run with the gc profiler for allocation rates:
+ *   java -jar zone-lookup-benchmarks.jar ZoneLookupBenchmark -prof gc
+ * or through main(), which adds it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZoneLookupBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int subnets;
+
+    //share of lookups that fall inside a mapped subnet
+    @Param({"0.9"})
+    double hitRatio;
+
+    private static final int QUERIES = 1 << 16;
+    //skewed traffic: this share of lookups goes to HOT_IPS addresses
+    private static final double HOT_SHARE = 0.9;
+    private static final int HOT_IPS = 256;
+
+    ZoneDataset dataset;
+    ZoneView view;
+    ZoneView rangeView;
+    ZoneLookupServiceImpl service;
+    ZoneLookupServiceImpl cachedService;
+    int[] addresses;
+    String[] IPs;
+    String[] skewedIPs;
+    String[] networks;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataset = new ZoneDataset(subnets, subnets / 100, 42);
+        view = new ZoneView(dataset.zoneMapping(), dataset.exceptions());
+        rangeView = new ZoneView(view.getZoneMapping(), view.getExceptions(), 0, true);
+        service = new ZoneLookupServiceImpl();
+        service.zoneView = view;
+
+        Random random = new Random(7);
+        addresses = new int[QUERIES];
+        IPs = new String[QUERIES];
+        networks = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int id = random.nextInt(view.getZoneMapping().size());
+            int network = view.getZoneMapping().getNetwork(id);
+            int hostBits = ~IPv4Address.mask(view.getZoneMapping().getPrefix(id));
+            addresses[i] = random.nextDouble() < hitRatio ? network | (random.nextInt() & hostBits) : random.nextInt();
+            IPs[i] = IPv4Address.format(addresses[i]);
+            networks[i] = view.getZoneMapping().getSubnet(id) + "/" + view.getZoneMapping().getCIDR(id);
+        }
+
+        cachedService = new ZoneLookupServiceImpl();
+        cachedService.zoneView = view;
+        cachedService.hotIPs = new ZoneResultCache<>(view, 65536);
+        skewedIPs = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            skewedIPs[i] = random.nextDouble() < HOT_SHARE ? IPs[random.nextInt(HOT_IPS)] : IPs[random.nextInt(QUERIES)];
+        }
+    }
+
+    private int nextQuery() {
+        return next = (next + 1) & (QUERIES - 1);
+    }
+
+    @Benchmark
+    public int indexLookup() {
+        return view.lookup(addresses[nextQuery()]);
+    }
+
+    @Benchmark
+    public int rangeLookup() {
+        return rangeView.lookup(addresses[nextQuery()]);
+    }
+
+    @Benchmark
+    public int parseAndLookup() {
+        long address = IPv4Address.parse(IPs[nextQuery()]);
+        return address < 0 ? ZoneView.NOT_FOUND : view.lookup((int) address);
+    }
+
+    @Benchmark
+    public Object zoneLookup() {
+        return service.ZoneLookup(IPs[nextQuery()]);
+    }
+
+    @Benchmark
+    public Object zoneLookupCompact() {
+        return service.ZoneLookupCompact(IPs[nextQuery()]);
+    }
+
+    @Benchmark
+    public Object zoneLookupSkewed() {
+        return service.ZoneLookup(skewedIPs[nextQuery()]);
+    }
+
+    @Benchmark
+    public Object zoneLookupSkewedCached() {
+        return cachedService.ZoneLookup(skewedIPs[nextQuery()]);
+    }
+
+    @Benchmark
+    public Object getSubnet() {
+        String network = networks[nextQuery()];
+        return service.getSubnet(network.substring(0, network.indexOf('/')));
+    }
+
+    @Benchmark
+    public Object ipInSubnet() {
+        int i = nextQuery();
+        String network = networks[i];
+        int slash = network.indexOf('/');
+        return service.IPinSubnet(IPs[i], network.substring(0, slash), network.substring(slash + 1));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void rebuildSnapshot(Blackhole blackhole) {
+        ZoneSnapshot zoneMapping = dataset.zoneMapping();
+        blackhole.consume(zoneMapping);
+        blackhole.consume(new ZoneView(zoneMapping, dataset.exceptions()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ZoneView republishExceptions() {
+        return new ZoneView(view.getZoneMapping(), dataset.exceptions());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ZoneView republishExceptionsRanges() {
+        return new ZoneView(view.getZoneMapping(), dataset.exceptions(), 0, true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ZoneLookupBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * ZoneDataset generates ZoneMapping/ExceptionIPs rows with a prefix mix resembling an inventory table:
+     * mostly /24s, a band of /16-/23 aggregates, some host routes and /25-/31s, and a few short prefixes.
+     * Rows are kept as Strings, as they come from the database, so building a snapshot includes parsing.
+     */
+    static final class ZoneDataset {
+        private static final String[] ZONES = {"BLUE", "RED", "GREEN", "BLACK", "WHITE", "N/A"};
+
+        private final String[][] zoneMappingRows;
+        private final String[][] exceptionRows;
+
+        ZoneDataset(int subnets, int exceptions, long seed) {
+            Random random = new Random(seed);
+            zoneMappingRows = new String[subnets][];
+            for (int i = 0; i < subnets; i++) {
+                zoneMappingRows[i] = row(random, "SERVICE-" + random.nextInt(200), "Z" + random.nextInt(40));
+            }
+            exceptionRows = new String[exceptions][];
+            for (int i = 0; i < exceptions; i++) {
+                //half of the exceptions replace an existing subnet, the rest are new
+                String[] row = random.nextBoolean() ? zoneMappingRows[random.nextInt(subnets)].clone() : row(random, "EXCEPTION", "X");
+                row[2] = "EXCEPTION";
+                exceptionRows[i] = row;
+            }
+        }
+
+        private static String[] row(Random random, String service, String newZone) {
+            int p = random.nextInt(100);
+            int prefix = p < 55 ? 24 : p < 80 ? 16 + random.nextInt(8) : p < 95 ? 25 + random.nextInt(8) : 8 + random.nextInt(8);
+            int network = random.nextInt() & IPv4Address.mask(prefix);
+            return new String[]{IPv4Address.format(network), Integer.toString(prefix), service,
+                    ZONES[random.nextInt(ZONES.length)], newZone};
+        }
+
+        ZoneSnapshot zoneMapping() {
+            return build(zoneMappingRows);
+        }
+
+        ZoneSnapshot exceptions() {
+            return build(exceptionRows);
+        }
+
+        private static ZoneSnapshot build(String[][] rows) {
+            ZoneSnapshot.Builder builder = new ZoneSnapshot.Builder();
+            for (String[] row : rows) builder.add(row[0], row[1], row[2], row[3], row[4]);
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.comcast.snp.netiq.utilities.maintenance.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZoneLookupLoadBenchmark runs ZoneLookup under 64 client threads while exceptions are rebuilt and published
+ * continuously, as during a refresh.
+ *
+ * lookupDuringRebuild is the service measurement: ZoneLookup called directly, reading whatever view is current
+ * while the rebuilder swaps in new ones. Compare it with ZoneLookupBenchmark.zoneLookup for the cost of a
+ * refresh running alongside.
+ *
+ * lookupOnServletPool and lookupAsync only show executor isolation, not anything about the service: ZoneLookup
+ * never blocks, so the difference between them is entirely that servletPool (poolThreads threads, blockedRequests
+ * of them kept asleep for blockedMillis to stand in for repository-backed requests) is saturated on purpose and
+ * the async variant's lookupExecutor is not. They are kept to size the lookup executor against a given servlet
+ * pool configuration.
+ *
+ *   java -jar zone-lookup-benchmarks.jar ZoneLookupLoadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class ZoneLookupLoadBenchmark {
+
+    @Param({"100000"})
+    int subnets;
+
+    @Param({"virtual", "pool"})
+    String executor;
+
+    @Param({"32"})
+    int poolThreads;
+
+    @Param({"0", "24"})
+    int blockedRequests;
+
+    @Param({"20"})
+    int blockedMillis;
+
+    private static final int QUERIES = 1 << 16;
+
+    ZoneLookupBenchmark.ZoneDataset dataset;
+    ZoneLookupServiceImpl service;
+    ExecutorService servletPool;
+    Thread blocker;
+    Thread rebuilder;
+    String[] IPs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataset = new ZoneLookupBenchmark.ZoneDataset(subnets, subnets / 100, 42);
+        ZoneView view = new ZoneView(dataset.zoneMapping(), dataset.exceptions());
+        service = new ZoneLookupServiceImpl();
+        service.zoneView = view;
+        service.lookupExecutor = ZoneLookupServiceImpl.newLookupExecutor(executor, 0);
+        servletPool = Executors.newFixedThreadPool(poolThreads);
+
+        Random random = new Random(7);
+        IPs = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int id = random.nextInt(view.getZoneMapping().size());
+            int hostBits = ~IPv4Address.mask(view.getZoneMapping().getPrefix(id));
+            IPs[i] = IPv4Address.format(view.getZoneMapping().getNetwork(id) | (random.nextInt() & hostBits));
+        }
+
+        //keeps blockedRequests servlet threads waiting on the "database"
+        blocker = new Thread(() -> {
+            Semaphore inFlight = new Semaphore(blockedRequests);
+            try {
+                while (blockedRequests > 0) {
+                    inFlight.acquire();
+                    servletPool.execute(() -> {
+                        try {
+                            Thread.sleep(blockedMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            } catch (InterruptedException | RejectedExecutionException e) {
+                //trial over
+            }
+        }, "blocked-requests");
+        blocker.setDaemon(true);
+        blocker.start();
+
+        //a refresh in progress: exceptions rebuilt and published over and over
+        rebuilder = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                service.zoneView = new ZoneView(service.zoneView.getZoneMapping(), dataset.exceptions());
+            }
+        }, "rebuilder");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        blocker.interrupt();
+        rebuilder.interrupt();
+        servletPool.shutdownNow();
+        service.lookupExecutor.shutdownNow();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = new Random().nextInt(QUERIES);
+
+        String nextIP(String[] IPs) {
+            return IPs[next = (next + 1) & (QUERIES - 1)];
+        }
+    }
+
+    @Benchmark
+    public Object lookupDuringRebuild(Cursor cursor) {
+        return service.ZoneLookup(cursor.nextIP(IPs));
+    }
+
+    @Benchmark
+    public Object lookupOnServletPool(Cursor cursor) throws InterruptedException, ExecutionException {
+        String IP = cursor.nextIP(IPs);
+        return servletPool.submit(() -> service.ZoneLookup(IP)).get();
+    }
+
+    @Benchmark
+    public Object lookupAsync(Cursor cursor) {
+        return service.ZoneLookupAsync(cursor.nextIP(IPs)).join();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ZoneLookupLoadBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}